@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tamu.tcat.db.core;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Creates database entities that cannot be created together in one transaction or batch, such as
+ * databases, by running the statement for each in parallel, each on its own connection.
+ *
+ * @since 2.1
+ */
+public final class ParallelCreation
+{
+   private static final Logger debug = Logger.getLogger(ParallelCreation.class.getName());
+
+   private ParallelCreation()
+   {
+   }
+
+   /**
+    * Run the creation statement for each name in auto-commit mode, on its own connection from the data
+    * source, with at most {@code parallelism} running at once. A failed statement is logged and does not
+    * affect the others. Returns once all have completed.
+    *
+    * @param dataSource The data source for the connections on which to run the statements.
+    * @param names The names of the entities to create.
+    * @param sqlCreate Creates the statement for a name, which must already be quoted as needed.
+    * @param parallelism The maximum number of statements to run concurrently.
+    * @return The names whose statement succeeded.
+    */
+   public static Set<String> create(DataSource dataSource, Collection<String> names, Function<String, String> sqlCreate, int parallelism)
+   {
+      if (names.isEmpty())
+         return Collections.emptySet();
+
+      Set<String> created = ConcurrentHashMap.newKeySet();
+      ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, names.size())));
+      try
+      {
+         for (String name : names)
+         {
+            exec.execute(() -> {
+               String sql = sqlCreate.apply(name);
+               try (Connection conn = dataSource.getConnection();
+                    Statement create = conn.createStatement())
+               {
+                  conn.setAutoCommit(true);
+                  create.executeUpdate(sql);
+                  created.add(name);
+               }
+               catch (Exception e)
+               {
+                  debug.log(Level.SEVERE, "Failed creating [" + name + "] with sql [" + sql + "]", e);
+               }
+            });
+         }
+      }
+      finally
+      {
+         exec.shutdown();
+      }
+
+      try
+      {
+         exec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      return created;
+   }
+}
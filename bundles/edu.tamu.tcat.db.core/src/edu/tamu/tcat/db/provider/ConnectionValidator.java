@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tamu.tcat.db.provider;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A connection validation strategy for connection pools that avoids a database round-trip on most
+ * borrows.
+ * <p>
+ * A connection that passed {@link Connection#isValid(int)} within the validation window is
+ * considered valid without contacting the database. Otherwise it is checked with
+ * {@code isValid}, which for modern drivers is a protocol-level ping rather than a SQL query, and the
+ * latency of the check is scored. A connection whose smoothed check latency exceeds the slow threshold,
+ * or that fails a check, is reported invalid from then on so that the pool discards it.
+ * <p>
+ * Pools that also validate idle connections in the background (e.g. an evictor configured to test
+ * idle connections at an interval longer than the window) thereby drop slow or broken sockets before
+ * they are borrowed.
+ *
+ * @since 2.1
+ */
+public class ConnectionValidator
+{
+   private static final Logger debug = Logger.getLogger(ConnectionValidator.class.getName());
+
+   private static final double SMOOTHING = 0.3;
+
+   private final long windowNanos;
+   private final long slowNanos;
+   private final Map<Connection, Health> tracked = Collections.synchronizedMap(new WeakHashMap<>());
+
+   /**
+    * @param window Time after a successful check during which a connection is assumed valid.
+    * @param slowThreshold Smoothed check latency above which a connection is discarded; zero or
+    *        negative to discard only connections that fail a check.
+    * @param unit The unit of {@code window} and {@code slowThreshold}.
+    */
+   public ConnectionValidator(long window, long slowThreshold, TimeUnit unit)
+   {
+      this.windowNanos = unit.toNanos(window);
+      this.slowNanos = unit.toNanos(slowThreshold);
+   }
+
+   /**
+    * Create a health record for a single physical connection. Callers that wrap physical connections
+    * should hold the record with the connection and use {@link Health#isValid(Connection, int)} to avoid
+    * the lookup performed by {@link #isValid(Connection, int)}.
+    */
+   public Health track()
+   {
+      return new Health();
+   }
+
+   /**
+    * Validate a physical connection, tracking its health by identity.
+    *
+    * @param conn The physical (unpooled) connection.
+    * @param timeoutSeconds The timeout for a check against the database, as for {@link Connection#isValid(int)}.
+    */
+   public boolean isValid(Connection conn, int timeoutSeconds) throws SQLException
+   {
+      Health health = tracked.computeIfAbsent(conn, c -> new Health());
+      return health.isValid(conn, timeoutSeconds);
+   }
+
+   /**
+    * The validation state of one physical connection.
+    */
+   public final class Health
+   {
+      private volatile long lastValidNanos;
+      private volatile boolean checked;
+      private volatile boolean discarded;
+      private volatile double latencyNanos;
+
+      private Health()
+      {
+      }
+
+      /**
+       * @param conn The physical connection this health record belongs to.
+       * @param timeoutSeconds The timeout for a check against the database.
+       */
+      public boolean isValid(Connection conn, int timeoutSeconds) throws SQLException
+      {
+         if (discarded)
+            return false;
+
+         if (checked && System.nanoTime() - lastValidNanos < windowNanos)
+            return true;
+
+         synchronized (this)
+         {
+            // another thread may have validated while this one waited; timed from here so that the
+            // wait for the lock is not counted as validation latency
+            long start = System.nanoTime();
+            if (checked && start - lastValidNanos < windowNanos)
+               return !discarded;
+
+            boolean valid = conn.isValid(timeoutSeconds);
+            long end = System.nanoTime();
+            double latency = end - start;
+            latencyNanos = checked ? latencyNanos + (latency - latencyNanos) * SMOOTHING : latency;
+            checked = true;
+
+            if (!valid)
+            {
+               debug.log(Level.FINE, "Discarding connection that failed validation");
+               discarded = true;
+            }
+            else if (slowNanos > 0 && latencyNanos > slowNanos)
+            {
+               debug.log(Level.FINE, "Discarding slow connection; validation latency " + (long)(latencyNanos / 1_000_000) + "ms");
+               discarded = true;
+            }
+            else
+               lastValidNanos = end;
+
+            return !discarded;
+         }
+      }
+
+      /**
+       * Record that the connection was just used successfully, extending the validation window
+       * without a check.
+       */
+      public void markValid()
+      {
+         if (checked)
+            lastValidNanos = System.nanoTime();
+      }
+
+      /**
+       * @return The smoothed latency of checks against the database in milliseconds, or {@code NaN}
+       *         if the connection has not been checked.
+       */
+      public double getLatencyMillis()
+      {
+         return checked ? latencyNanos / 1_000_000 : Double.NaN;
+      }
+   }
+}
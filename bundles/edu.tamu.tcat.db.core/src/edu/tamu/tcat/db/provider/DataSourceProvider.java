@@ -17,6 +17,8 @@
 package edu.tamu.tcat.db.provider;
 
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.sql.DataSource;
 
@@ -35,4 +37,30 @@ public interface DataSourceProvider
     * @throws SQLException If the data source could not be initialized.
     */
    DataSource getDataSource() throws SQLException;
+
+   /**
+    * Obtain the data source without blocking the caller, so that several providers (and the services
+    * that depend on them) may initialize in parallel.
+    * <p>
+    * Implementations that establish connections during initialization should override this to return
+    * a future that completes once the data source is ready for use. The default implementation calls
+    * {@link #getDataSource()} on the common fork-join pool.
+    *
+    * @return A future that completes with the data source, or exceptionally with the
+    *         {@link SQLException} raised if it could not be initialized.
+    * @since 2.1
+    */
+   default CompletableFuture<DataSource> getDataSourceAsync()
+   {
+      return CompletableFuture.supplyAsync(() -> {
+         try
+         {
+            return getDataSource();
+         }
+         catch (SQLException e)
+         {
+            throw new CompletionException(e);
+         }
+      });
+   }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tamu.tcat.db.provider;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Reports connections borrowed from a data source and held longer than a threshold, which usually
+ * indicates a connection that is never closed.
+ * <p>
+ * Every borrow is timed, at the cost of reading {@link System#nanoTime()}. Only a fraction of borrows,
+ * chosen at random, also capture the stack of the borrowing thread, which is far more expensive; a leak
+ * that recurs is therefore soon reported with the code responsible. A background sweep, at an interval
+ * of half the threshold, logs a warning for each connection held past the threshold, once per borrow.
+ * <p>
+ * Connections to track must be borrowed through {@link #wrap(DataSource)} or passed to
+ * {@link #track(Connection)}, which hand out a dynamic proxy for the connection; statements and result
+ * sets obtained through it are proxied in turn, so that closing the connection reached from any of them
+ * ends tracking. A detector should be {@link #close() closed} along with its data source.
+ *
+ * @since 2.1
+ */
+public class LeakDetector implements AutoCloseable
+{
+   private static final Logger debug = Logger.getLogger(LeakDetector.class.getName());
+
+   private static final ScheduledThreadPoolExecutor sweeper;
+   static
+   {
+      sweeper = new ScheduledThreadPoolExecutor(1, r -> {
+         Thread t = new Thread(r, "Connection leak detector");
+         t.setDaemon(true);
+         return t;
+      });
+      sweeper.setRemoveOnCancelPolicy(true);
+   }
+
+   private final double sampleRate;
+   private final long thresholdNanos;
+   private final Set<TrackedConnection> held = ConcurrentHashMap.newKeySet();
+   private final ScheduledFuture<?> sweep;
+   private volatile boolean closed;
+
+   /**
+    * @param sampleRate The fraction of borrows, from 0 to 1, for which the borrowing stack is captured.
+    * @param threshold The time a connection may be held before it is reported.
+    * @param unit The unit of {@code threshold}.
+    */
+   public LeakDetector(double sampleRate, long threshold, TimeUnit unit)
+   {
+      if (!(sampleRate >= 0 && sampleRate <= 1))
+         throw new IllegalArgumentException("Sample rate must be between 0 and 1, but was " + sampleRate);
+      if (threshold <= 0)
+         throw new IllegalArgumentException("Threshold must be positive, but was " + threshold);
+
+      this.sampleRate = sampleRate;
+      this.thresholdNanos = unit.toNanos(threshold);
+
+      long interval = Math.max(TimeUnit.SECONDS.toNanos(1), thresholdNanos / 2);
+      sweep = sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * @return A data source whose connections are tracked by this detector.
+    */
+   public DataSource wrap(DataSource dataSource)
+   {
+      return new TrackingDataSource(dataSource);
+   }
+
+   /**
+    * Start tracking a connection that has just been borrowed. The returned connection must be used in
+    * its place; tracking ends when it is closed.
+    */
+   public Connection track(Connection conn)
+   {
+      Throwable site = null;
+      if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate)
+         site = new Throwable("Connection borrowed here");
+
+      TrackedConnection tracked = new TrackedConnection(conn, this, System.nanoTime(), Thread.currentThread().getName(), site);
+      if (!closed)
+      {
+         held.add(tracked);
+         // closed meanwhile, after the set was cleared
+         if (closed)
+            held.remove(tracked);
+      }
+      return tracked.proxy;
+   }
+
+   /**
+    * @return The number of tracked connections currently held longer than the threshold.
+    */
+   public int getLongHeldCount()
+   {
+      long now = System.nanoTime();
+      int count = 0;
+      for (TrackedConnection conn : held)
+      {
+         if (now - conn.borrowed > thresholdNanos)
+            count++;
+      }
+      return count;
+   }
+
+   /**
+    * Stop sweeping for leaks. Connections borrowed afterwards are still timed, but no longer held by
+    * the detector, and never reported.
+    */
+   @Override
+   public void close()
+   {
+      closed = true;
+      sweep.cancel(false);
+      held.clear();
+   }
+
+   void released(TrackedConnection conn)
+   {
+      if (held.remove(conn) && conn.reported)
+         debug.log(Level.INFO, "Connection reported as held too long was closed after " + heldMillis(conn, System.nanoTime()) + "ms");
+   }
+
+   private void sweep()
+   {
+      long now = System.nanoTime();
+      for (TrackedConnection conn : held)
+      {
+         if (conn.reported || now - conn.borrowed <= thresholdNanos)
+            continue;
+
+         // the pool may have reclaimed it, e.g. as abandoned, without it being closed through the wrapper
+         if (conn.isDelegateClosed())
+         {
+            held.remove(conn);
+            continue;
+         }
+
+         conn.reported = true;
+         String msg = "Connection held for " + heldMillis(conn, now) + "ms by thread [" + conn.threadName + "]";
+         if (conn.site == null)
+            debug.log(Level.WARNING, msg + "; borrow site was not sampled");
+         else
+            debug.log(Level.WARNING, msg, conn.site);
+      }
+   }
+
+   private static long heldMillis(TrackedConnection conn, long now)
+   {
+      return TimeUnit.NANOSECONDS.toMillis(now - conn.borrowed);
+   }
+
+   private class TrackingDataSource implements DataSource
+   {
+      private final DataSource delegate;
+
+      TrackingDataSource(DataSource delegate)
+      {
+         this.delegate = delegate;
+      }
+
+      @Override
+      public Connection getConnection() throws SQLException
+      {
+         return track(delegate.getConnection());
+      }
+
+      @Override
+      public Connection getConnection(String username, String password) throws SQLException
+      {
+         return track(delegate.getConnection(username, password));
+      }
+
+      @Override
+      public PrintWriter getLogWriter() throws SQLException
+      {
+         return delegate.getLogWriter();
+      }
+
+      @Override
+      public void setLogWriter(PrintWriter out) throws SQLException
+      {
+         delegate.setLogWriter(out);
+      }
+
+      @Override
+      public void setLoginTimeout(int seconds) throws SQLException
+      {
+         delegate.setLoginTimeout(seconds);
+      }
+
+      @Override
+      public int getLoginTimeout() throws SQLException
+      {
+         return delegate.getLoginTimeout();
+      }
+
+      @Override
+      public Logger getParentLogger() throws SQLFeatureNotSupportedException
+      {
+         return delegate.getParentLogger();
+      }
+
+      @Override
+      public <T> T unwrap(Class<T> iface) throws SQLException
+      {
+         if (iface.isInstance(delegate))
+            return iface.cast(delegate);
+         return delegate.unwrap(iface);
+      }
+
+      @Override
+      public boolean isWrapperFor(Class<?> iface) throws SQLException
+      {
+         return iface.isInstance(delegate) || delegate.isWrapperFor(iface);
+      }
+
+      @Override
+      public String toString()
+      {
+         return delegate.toString();
+      }
+   }
+}
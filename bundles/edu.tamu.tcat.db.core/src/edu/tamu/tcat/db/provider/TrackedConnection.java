@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tamu.tcat.db.provider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Wrapper;
+
+/**
+ * A borrowed connection tracked by a {@link LeakDetector}, handed out as the dynamic {@link #proxy} in
+ * place of the connection itself. Closing the proxy ends tracking.
+ * <p>
+ * Statements, result sets and database metadata obtained through the proxy are wrapped in the same way,
+ * so that every path back to the connection, such as {@link Statement#getConnection()},
+ * {@link ResultSet#getStatement()} or {@link DatabaseMetaData#getConnection()}, leads to the proxy;
+ * code commonly closes a connection obtained from its statement.
+ */
+class TrackedConnection implements InvocationHandler
+{
+   private static final ClassLoader loader = TrackedConnection.class.getClassLoader();
+
+   private final Connection delegate;
+   private final LeakDetector detector;
+
+   /** The connection handed out in place of the delegate. */
+   final Connection proxy;
+   /** The {@link System#nanoTime()} at which the connection was borrowed. */
+   final long borrowed;
+   final String threadName;
+   /** The stack of the borrowing thread, if sampled. */
+   final Throwable site;
+   volatile boolean reported;
+
+   TrackedConnection(Connection delegate, LeakDetector detector, long borrowed, String threadName, Throwable site)
+   {
+      this.delegate = delegate;
+      this.detector = detector;
+      this.borrowed = borrowed;
+      this.threadName = threadName;
+      this.site = site;
+      this.proxy = (Connection)Proxy.newProxyInstance(loader, new Class<?>[] { Connection.class }, this);
+   }
+
+   boolean isDelegateClosed()
+   {
+      try
+      {
+         return delegate.isClosed();
+      }
+      catch (SQLException e)
+      {
+         return false;
+      }
+   }
+
+   @Override
+   public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+   {
+      if (method.getName().equals("close") && method.getParameterCount() == 0)
+         detector.released(this);
+      return forward(delegate, proxy, null, null, method, args);
+   }
+
+   /**
+    * Invoke a method of a proxy on its delegate, wrapping any JDBC object returned that could lead back
+    * to the connection.
+    *
+    * @param parent The object from which the delegate was obtained, or {@code null} for the connection.
+    * @param parentProxy The proxy for {@code parent}.
+    */
+   private Object forward(Object target, Object proxy, Object parent, Object parentProxy, Method method, Object[] args) throws Throwable
+   {
+      Class<?> declaring = method.getDeclaringClass();
+      if (declaring == Object.class)
+      {
+         switch (method.getName())
+         {
+            case "equals":
+               return proxy == args[0];
+            case "hashCode":
+               return System.identityHashCode(proxy);
+            default:
+               return target.toString();
+         }
+      }
+
+      if (declaring == Wrapper.class && ((Class<?>)args[0]).isInstance(target))
+         return method.getName().equals("unwrap") ? target : Boolean.TRUE;
+
+      Object result;
+      try
+      {
+         result = method.invoke(target, args);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw e.getCause();
+      }
+
+      Class<?> type = method.getReturnType();
+      if (result == null)
+         return null;
+      if (type == Connection.class)
+         return this.proxy;
+      if (result == parent)
+         return parentProxy;
+      if (Statement.class.isAssignableFrom(type) || type == ResultSet.class || type == DatabaseMetaData.class)
+         return Proxy.newProxyInstance(loader, new Class<?>[] { type }, (p, m, a) -> forward(result, p, target, proxy, m, a));
+      return result;
+   }
+}
@@ -16,6 +16,7 @@
 package edu.tamu.tcat.db.exec.sql;
 
 import java.sql.Connection;
+import java.sql.Savepoint;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
@@ -44,6 +45,8 @@ public interface SqlExecutor
     * on the same data source. Since data source access drivers are typically not declared to be thread-safe
     * and therefore all requests are handled in a single thread, any
     * other calls that need to execute against the same data source will deadlock waiting while for this task to complete.
+    * Executor implementations that detect such nested submissions (e.g. by running them inline on the current
+    * connection) document this behavior explicitly.
     *
     * @param <T> The type of result returned from the task's execution.
     */
@@ -73,11 +76,161 @@ public interface SqlExecutor
       }
    }
 
+   /**
+    * A task that uses its {@link ExecutionContext}, e.g. to {@link ExecutionContext#fork(ExecutorTask) fork}
+    * sub-tasks. Unlike {@link ExecutorTask}, it may be written as a lambda taking both the connection and
+    * the context.
+    *
+    * @since 1.3
+    */
+   @FunctionalInterface
+   interface ContextTask<T> extends ExecutorTask<T>
+   {
+      @Override
+      T execute(Connection conn, ExecutionContext context) throws Exception;
+
+      /**
+       * Executes this task for an executor that does not supply a context, with a context that runs any
+       * sub-task it forks serially on the given connection.
+       */
+      @Override
+      default T execute(Connection conn) throws Exception
+      {
+         return execute(conn, new ExecutionContext()
+         {
+            @Override
+            public boolean isCancelled()
+            {
+               return false;
+            }
+
+            @Override
+            public Connection getConnection()
+            {
+               return conn;
+            }
+         });
+      }
+   }
+
    /**
     * @since 1.2
     */
    interface ExecutionContext
    {
       boolean isCancelled();
+
+      /**
+       * @return The connection on which the running task executes.
+       * @since 1.3
+       */
+      Connection getConnection();
+
+      /**
+       * Start a sub-task of the running task that executes in parallel with it, on another connection.
+       * <p>
+       * Sub-tasks are scoped to the task that forked them. If the task fails, its sub-tasks are cancelled,
+       * and any that have not started when the task returns are cancelled as well, so a task should
+       * {@link Subtask#join() join} each sub-task whose result it needs. The task does not complete until
+       * every sub-task still running has finished. Since a sub-task may not run in the transaction of its
+       * parent, sub-tasks should be independent of the parent's uncommitted changes and are best suited
+       * to reads.
+       * <p>
+       * Unlike submitting a task to the executor and waiting on it, joining a sub-task cannot deadlock
+       * a saturated executor: executors that run sub-tasks in parallel run a sub-task that has not yet
+       * obtained a connection on the joining thread.
+       * <p>
+       * By default, the sub-task runs serially before this method returns, on the
+       * {@link #getConnection() connection} of the running task and under a savepoint if that connection
+       * is in a transaction, so that a task forking sub-tasks runs on any executor. The returned sub-task
+       * is already done.
+       *
+       * @since 1.3
+       */
+      default <X> Subtask<X> fork(ExecutorTask<X> task)
+      {
+         X result = null;
+         Exception failure = null;
+         try
+         {
+            Connection conn = getConnection();
+            Savepoint savepoint = conn.getAutoCommit() ? null : conn.setSavepoint();
+            try
+            {
+               result = task.execute(conn, this);
+            }
+            catch (Exception e)
+            {
+               if (savepoint != null)
+               {
+                  try
+                  {
+                     conn.rollback(savepoint);
+                  }
+                  catch (Exception ex)
+                  {
+                     e.addSuppressed(ex);
+                  }
+               }
+               throw e;
+            }
+         }
+         catch (Exception e)
+         {
+            failure = e;
+         }
+
+         X value = result;
+         Exception error = failure;
+         return new Subtask<X>()
+         {
+            @Override
+            public X join() throws Exception
+            {
+               if (error != null)
+                  throw error;
+               return value;
+            }
+
+            @Override
+            public void cancel()
+            {
+               // already complete
+            }
+
+            @Override
+            public boolean isDone()
+            {
+               return true;
+            }
+         };
+      }
+   }
+
+   /**
+    * A sub-task {@link ExecutionContext#fork(ExecutorTask) forked} by a running task.
+    *
+    * @since 1.3
+    */
+   interface Subtask<X>
+   {
+      /**
+       * Wait for the sub-task to complete. Called from the forking task, this runs the sub-task on the
+       * calling thread if it has not yet obtained a connection of its own.
+       *
+       * @return The result of the sub-task.
+       * @throws Exception The exception with which the sub-task failed, or a
+       *         {@link java.util.concurrent.CancellationException} if it was cancelled.
+       */
+      X join() throws Exception;
+
+      /**
+       * Cancel the sub-task. A sub-task that has not started will not run; a running sub-task sees its
+       * context {@link ExecutionContext#isCancelled() cancelled}, may have its current statement
+       * cancelled, and is rolled back rather than committed.
+       */
+      void cancel();
+
+      boolean isDone();
    }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2019 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.hikari;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import edu.tamu.tcat.db.core.DataSourceException;
+import edu.tamu.tcat.db.provider.DataSourceProvider;
+import edu.tamu.tcat.osgi.config.ConfigurationProperties;
+
+/**
+ * Base {@link DataSourceProvider} backed by a <i>HikariCP</i> pool. Subclasses create the driver-specific
+ * {@link DataSource}; this class applies pool tuning from configuration and records pool metrics.
+ * <p>
+ * All configuration keys are relative to {@link #getPropertyPrefix()}. Pool tuning keys are:
+ * <ul>
+ *   <li>{@code pool.max_size} - maximum pool size (default 10)</li>
+ *   <li>{@code pool.min_idle} - minimum idle connections (default: max size)</li>
+ *   <li>{@code pool.connection_timeout_ms} - maximum wait for a connection (default 30000)</li>
+ *   <li>{@code pool.idle_timeout_ms} - idle time before a connection above min idle is retired (default 600000)</li>
+ *   <li>{@code pool.max_lifetime_ms} - maximum lifetime of a connection (default 1800000)</li>
+ *   <li>{@code pool.validation_timeout_ms} - maximum time for a liveness check (default 5000)</li>
+ *   <li>{@code pool.leak_detection_ms} - hold time after which a connection is logged as a possible leak (default 0, disabled)</li>
+ *   <li>{@code pool.prewarm} - connections the pool opens in the background as soon as it starts, raising
+ *       {@code pool.min_idle} if lower; at most the max size (default 0)</li>
+ * </ul>
+ * <p>
+ * {@link #activate()} does not block on the database; the pool is created and tested in the background.
+ * The pool is created even if the database is unreachable, and connects once it becomes reachable.
+ * {@link #getDataSourceAsync()} completes once that has finished, and {@link #getDataSource()} waits for it
+ * for up to {@code conn_timeout_s} seconds if set, or otherwise for slightly longer than the pool's
+ * connection timeout, which bounds the initial connection test.
+ * <p>
+ * Each distinct {@link DataSource} used by the app should have a dedicated provider with its own prefix.
+ */
+public abstract class AbstractHikariDataSourceProvider implements DataSourceProvider
+{
+   private static final Logger logger = Logger.getLogger(AbstractHikariDataSourceProvider.class.getName());
+
+   public static final String PROP_HOST = "host";
+   public static final String PROP_PORT = "port";
+   public static final String PROP_DATABASE = "db";
+   public static final String PROP_USER = "user";
+   public static final String PROP_PASSWORD = "password";
+   public static final String PROP_USE_SSL = "useSsl";
+   public static final String PROP_CONN_TIMEOUT_SEC = "conn_timeout_s";
+
+   public static final String PROP_POOL_MAX_SIZE = "pool.max_size";
+   public static final String PROP_POOL_MIN_IDLE = "pool.min_idle";
+   public static final String PROP_POOL_CONNECTION_TIMEOUT_MS = "pool.connection_timeout_ms";
+   public static final String PROP_POOL_IDLE_TIMEOUT_MS = "pool.idle_timeout_ms";
+   public static final String PROP_POOL_MAX_LIFETIME_MS = "pool.max_lifetime_ms";
+   public static final String PROP_POOL_VALIDATION_TIMEOUT_MS = "pool.validation_timeout_ms";
+   public static final String PROP_POOL_LEAK_DETECTION_MS = "pool.leak_detection_ms";
+   public static final String PROP_POOL_PREWARM = "pool.prewarm";
+
+   private final HikariPoolMetrics metrics = new HikariPoolMetrics();
+
+   private ConfigurationProperties svcProps;
+   private volatile CompletableFuture<HikariDataSource> initialization;
+   /** How long {@link #getDataSource()} waits for initialization. */
+   private long initTimeoutMillis;
+
+   public void bind(ConfigurationProperties svc)
+   {
+      this.svcProps = svc;
+   }
+
+   /**
+    * @return The prefix, without a trailing '.', of all configuration keys read by this provider.
+    */
+   protected abstract String getPropertyPrefix();
+
+   /**
+    * Create the unpooled, driver-specific data source to be wrapped by the pool.
+    *
+    * @param props The configuration to read.
+    */
+   protected abstract DataSource createDriverDataSource(ConfigurationProperties props) throws DataSourceException;
+
+   /**
+    * Read a configuration value relative to {@link #getPropertyPrefix()}.
+    */
+   protected <T> T getProperty(ConfigurationProperties props, String key, Class<T> type, T defaultValue)
+   {
+      return props.getPropertyValue(getPropertyPrefix() + "." + key, type, defaultValue);
+   }
+
+   /**
+    * Apply pool tuning from configuration. Subclasses may override to set driver-specific pool options.
+    */
+   protected void configurePool(HikariConfig config, ConfigurationProperties props)
+   {
+      int maxSize = getProperty(props, PROP_POOL_MAX_SIZE, Integer.class, Integer.valueOf(10)).intValue();
+      int minIdle = getProperty(props, PROP_POOL_MIN_IDLE, Integer.class, Integer.valueOf(maxSize)).intValue();
+
+      config.setPoolName(getPropertyPrefix());
+      config.setMaximumPoolSize(maxSize);
+      config.setMinimumIdle(Math.min(minIdle, maxSize));
+      config.setConnectionTimeout(getProperty(props, PROP_POOL_CONNECTION_TIMEOUT_MS, Long.class, Long.valueOf(30_000)).longValue());
+      config.setIdleTimeout(getProperty(props, PROP_POOL_IDLE_TIMEOUT_MS, Long.class, Long.valueOf(600_000)).longValue());
+      config.setMaxLifetime(getProperty(props, PROP_POOL_MAX_LIFETIME_MS, Long.class, Long.valueOf(1_800_000)).longValue());
+      config.setValidationTimeout(getProperty(props, PROP_POOL_VALIDATION_TIMEOUT_MS, Long.class, Long.valueOf(5_000)).longValue());
+      config.setLeakDetectionThreshold(getProperty(props, PROP_POOL_LEAK_DETECTION_MS, Long.class, Long.valueOf(0)).longValue());
+      config.setMetricsTrackerFactory(metrics);
+   }
+
+   /**
+    * Close all datasources<br>
+    * If the provider is a service, this should be invoked on service deregistration
+    */
+   public void shutdown() throws DataSourceException
+   {
+      CompletableFuture<HikariDataSource> init = initialization;
+      if (init == null)
+         return;
+
+      if (!init.isDone())
+      {
+         // close once initialization completes rather than blocking deregistration
+         init.thenAccept(HikariDataSource::close);
+         return;
+      }
+
+      try
+      {
+         if (!init.isCompletedExceptionally())
+            init.join().close();
+      }
+      catch (Exception e)
+      {
+         throw new DataSourceException("Error closing " + getClass().getName() + " datasource", e);
+      }
+   }
+
+   public void activate()
+   {
+      HikariConfig config = new HikariConfig();
+      try
+      {
+         Objects.requireNonNull(svcProps, "No configuration bound");
+         int prewarm = getProperty(svcProps, PROP_POOL_PREWARM, Integer.class, Integer.valueOf(0)).intValue();
+
+         config.setDataSource(createDriverDataSource(svcProps));
+         configurePool(config, svcProps);
+         // the pool fills itself to its minimum idle in the background, without holding connections
+         // that requests may need; a negative minimum idle already defaults to the max size
+         int minIdle = config.getMinimumIdle();
+         if (minIdle >= 0 && prewarm > minIdle)
+            config.setMinimumIdle(Math.min(prewarm, config.getMaximumPoolSize()));
+         // start the pool without a connection rather than fail for good if the database is unreachable
+         config.setInitializationFailTimeout(-1);
+
+         Integer initTimeoutSec = getProperty(svcProps, PROP_CONN_TIMEOUT_SEC, Integer.class, null);
+         initTimeoutMillis = initTimeoutSec != null
+               ? TimeUnit.SECONDS.toMillis(initTimeoutSec.intValue())
+               // long enough for the initial connection test to succeed or time out on its own
+               : config.getConnectionTimeout() + 1000;
+      }
+      catch (Exception e)
+      {
+         throw new IllegalStateException("Failed initializing Hikari DataSource Provider " + getClass().getName(), e);
+      }
+
+      ExecutorService exec = Executors.newCachedThreadPool(r -> {
+         Thread t = new Thread(r, "DataSource initializer " + getPropertyPrefix());
+         t.setDaemon(true);
+         return t;
+      });
+
+      initialization = CompletableFuture.supplyAsync(() -> {
+         HikariDataSource hds = new HikariDataSource(config);
+         try (Connection connection = hds.getConnection())
+         {
+            logger.info("DB connection tested successfully by " + getClass().getName());
+         }
+         catch (Exception e)
+         {
+            // the pool may still recover once the database is reachable
+            logger.log(Level.SEVERE, "Failed connecting to database in " + getClass().getName(), e);
+         }
+         return hds;
+      }, exec);
+
+      initialization.whenComplete((hds, ex) -> {
+         if (ex != null)
+            logger.log(Level.SEVERE, "Failed initializing DB connection in " + getClass().getName(), ex);
+         exec.shutdown();
+      });
+   }
+
+   public void dispose()
+   {
+      try
+      {
+         shutdown();
+      }
+      catch (DataSourceException e)
+      {
+         logger.log(Level.WARNING, "Failed closing data source", e);
+      }
+   }
+
+   /**
+    * @return Pool gauges and connection timing histograms for this provider's pool.
+    */
+   public HikariPoolMetrics getPoolMetrics()
+   {
+      return metrics;
+   }
+
+   @Override
+   public DataSource getDataSource() throws SQLException
+   {
+      CompletableFuture<HikariDataSource> init = initialization;
+      if (init == null)
+         throw new IllegalStateException("DataSource provider has not been activated");
+
+      HikariDataSource dataSource;
+      try
+      {
+         dataSource = init.get(initTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException e)
+      {
+         throw new SQLException("Timed out initializing DB connection in " + getClass().getName(), e);
+      }
+      catch (ExecutionException e)
+      {
+         throw new SQLException("Failed initializing DB connection in " + getClass().getName(), e.getCause());
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted initializing DB connection in " + getClass().getName(), e);
+      }
+
+      if (dataSource.isClosed())
+         throw new IllegalStateException("DataSource is unable to create connections");
+      return dataSource;
+   }
+
+   @Override
+   public CompletableFuture<DataSource> getDataSourceAsync()
+   {
+      CompletableFuture<HikariDataSource> init = initialization;
+      if (init == null)
+         throw new IllegalStateException("DataSource provider has not been activated");
+      return init.thenApply(ds -> ds);
+   }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.hikari;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Pool gauges and connection timing histograms for a single HikariCP pool, collected without any
+ * external metrics library. An instance is installed as the pool's {@link MetricsTrackerFactory} by
+ * {@link AbstractHikariDataSourceProvider} and may be polled or exported by the application.
+ */
+public class HikariPoolMetrics implements MetricsTrackerFactory
+{
+   private final LatencyHistogram acquireNanos = new LatencyHistogram("ns");
+   private final LatencyHistogram usageMillis = new LatencyHistogram("ms");
+   private final LatencyHistogram creationMillis = new LatencyHistogram("ms");
+   private final LongAdder timeouts = new LongAdder();
+
+   private volatile String poolName;
+   private volatile PoolStats poolStats;
+
+   @Override
+   public IMetricsTracker create(String poolName, PoolStats poolStats)
+   {
+      this.poolName = poolName;
+      this.poolStats = poolStats;
+      return new Tracker();
+   }
+
+   public String getPoolName()
+   {
+      return poolName;
+   }
+
+   /** @return The number of connections currently checked out of the pool. */
+   public int getActiveConnections()
+   {
+      PoolStats stats = poolStats;
+      return stats == null ? 0 : stats.getActiveConnections();
+   }
+
+   /** @return The number of connections idle in the pool. */
+   public int getIdleConnections()
+   {
+      PoolStats stats = poolStats;
+      return stats == null ? 0 : stats.getIdleConnections();
+   }
+
+   /** @return The number of connections, active and idle, in the pool. */
+   public int getTotalConnections()
+   {
+      PoolStats stats = poolStats;
+      return stats == null ? 0 : stats.getTotalConnections();
+   }
+
+   /** @return The number of threads waiting for a connection. */
+   public int getPendingThreads()
+   {
+      PoolStats stats = poolStats;
+      return stats == null ? 0 : stats.getPendingThreads();
+   }
+
+   /** @return Time spent waiting for a connection on each checkout, in nanoseconds. */
+   public LatencyHistogram getAcquireTime()
+   {
+      return acquireNanos;
+   }
+
+   /** @return Time each connection was held before return to the pool, in milliseconds. */
+   public LatencyHistogram getUsageTime()
+   {
+      return usageMillis;
+   }
+
+   /** @return Time to open each new physical connection, in milliseconds. */
+   public LatencyHistogram getCreationTime()
+   {
+      return creationMillis;
+   }
+
+   /** @return The number of checkouts that timed out waiting for a connection. */
+   public long getTimeouts()
+   {
+      return timeouts.sum();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "Pool[" + poolName + "] active=" + getActiveConnections() + ", idle=" + getIdleConnections()
+            + ", pending=" + getPendingThreads() + ", timeouts=" + getTimeouts() + ", acquire{" + acquireNanos + "}";
+   }
+
+   private class Tracker implements IMetricsTracker
+   {
+      @Override
+      public void recordConnectionCreatedMillis(long connectionCreatedMillis)
+      {
+         creationMillis.record(connectionCreatedMillis);
+      }
+
+      @Override
+      public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos)
+      {
+         acquireNanos.record(elapsedAcquiredNanos);
+      }
+
+      @Override
+      public void recordConnectionUsageMillis(long elapsedBorrowedMillis)
+      {
+         usageMillis.record(elapsedBorrowedMillis);
+      }
+
+      @Override
+      public void recordConnectionTimeout()
+      {
+         timeouts.increment();
+      }
+   }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.hikari;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values using power-of-two buckets. Recording is cheap enough
+ * to be done on every connection checkout; percentiles are approximate (within a factor of two).
+ */
+public class LatencyHistogram
+{
+   private static final int BUCKETS = 64;
+
+   private final String unit;
+   private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+   private final LongAdder count = new LongAdder();
+   private final LongAdder sum = new LongAdder();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * @param unit A label for the unit of recorded values, e.g. "ns" or "ms".
+    */
+   public LatencyHistogram(String unit)
+   {
+      this.unit = unit;
+   }
+
+   public void record(long value)
+   {
+      long v = Math.max(0, value);
+      // bucket i holds values in [2^(i-1), 2^i - 1]; bucket 0 holds 0
+      buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(v));
+      count.increment();
+      sum.add(v);
+
+      long current = max.get();
+      while (v > current && !max.compareAndSet(current, v))
+         current = max.get();
+   }
+
+   public String getUnit()
+   {
+      return unit;
+   }
+
+   public long getCount()
+   {
+      return count.sum();
+   }
+
+   public long getMax()
+   {
+      return max.get();
+   }
+
+   public double getMean()
+   {
+      long n = count.sum();
+      return n == 0 ? 0 : (double)sum.sum() / n;
+   }
+
+   /**
+    * @param percentile A value in the range {@code [0, 100]}.
+    * @return The upper bound of the bucket containing the requested percentile, or 0 if nothing has been recorded.
+    */
+   public long getPercentile(double percentile)
+   {
+      long n = count.sum();
+      if (n == 0)
+         return 0;
+
+      long target = (long)Math.ceil(n * Math.max(0, Math.min(100, percentile)) / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+         seen += buckets.get(i);
+         if (seen >= Math.max(1, target))
+            return Math.min(max.get(), i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+      }
+      return max.get();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "count=" + getCount() + ", mean=" + String.format("%.1f", Double.valueOf(getMean())) + unit
+            + ", p50=" + getPercentile(50) + unit + ", p99=" + getPercentile(99) + unit + ", max=" + getMax() + unit;
+   }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.hikari;
+
+import javax.sql.DataSource;
+
+import com.microsoft.sqlserver.jdbc.SQLServerDataSource;
+
+import edu.tamu.tcat.db.core.DataSourceException;
+import edu.tamu.tcat.db.provider.DataSourceProvider;
+import edu.tamu.tcat.osgi.config.ConfigurationProperties;
+
+/**
+ * A {@link DataSourceProvider} using <i>HikariCP</i> and <i>MSSQL</i>.
+ * <p>
+ * Configuration keys are read relative to {@value #DEFAULT_PREFIX} unless {@link #getPropertyPrefix()}
+ * is overridden; see {@link AbstractHikariDataSourceProvider} for the pool tuning keys. In addition to
+ * the common keys, {@code useIntegrated} and {@code trustServerCertificate} are supported.
+ */
+public class MsSqlHikariDataSourceProvider extends AbstractHikariDataSourceProvider
+{
+   public static final String DEFAULT_PREFIX = "edu.tamu.tcat.db.mssql";
+
+   public static final String PROP_USE_INTEGRATED = "useIntegrated";
+   public static final String PROP_TRUST_SERVER_CERT = "trustServerCertificate";
+
+   @Override
+   protected String getPropertyPrefix()
+   {
+      return DEFAULT_PREFIX;
+   }
+
+   @Override
+   protected DataSource createDriverDataSource(ConfigurationProperties props) throws DataSourceException
+   {
+      String host = getProperty(props, PROP_HOST, String.class, null);
+      String database = getProperty(props, PROP_DATABASE, String.class, null);
+      String user = getProperty(props, PROP_USER, String.class, null);
+      String password = getProperty(props, PROP_PASSWORD, String.class, null);
+      Boolean ssl = getProperty(props, PROP_USE_SSL, Boolean.class, Boolean.FALSE);
+      Integer port = getProperty(props, PROP_PORT, Integer.class, null);
+      Boolean useIntegrated = getProperty(props, PROP_USE_INTEGRATED, Boolean.class, Boolean.FALSE);
+      Boolean trustServerCertificate = getProperty(props, PROP_TRUST_SERVER_CERT, Boolean.class, null);
+
+      SQLServerDataSource ds = new SQLServerDataSource();
+      ds.setServerName(host);
+      if (port != null)
+         ds.setPortNumber(port.intValue());
+      if (ssl.booleanValue())
+         ds.setSSLProtocol("TLS");
+
+      ds.setDatabaseName(database);
+
+      if (trustServerCertificate != null)
+      {
+         ds.setTrustServerCertificate(trustServerCertificate.booleanValue());
+      }
+      if (user != null && !user.isEmpty() && password != null && ! password.isEmpty())
+      {
+         ds.setUser(user);
+         ds.setPassword(password);
+      }
+      else if (useIntegrated.booleanValue())
+      {
+         ds.setIntegratedSecurity(true);
+      }
+      else
+         throw new DataSourceException("Username and password or useIntegrated must be specified");
+
+      return ds;
+   }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.hikari;
+
+import javax.sql.DataSource;
+
+import org.postgresql.ds.PGSimpleDataSource;
+
+import edu.tamu.tcat.db.core.DataSourceException;
+import edu.tamu.tcat.db.provider.DataSourceProvider;
+import edu.tamu.tcat.osgi.config.ConfigurationProperties;
+
+/**
+ * A {@link DataSourceProvider} using <i>HikariCP</i> and <i>PostgreSQL</i>.
+ * <p>
+ * Configuration keys are read relative to {@value #DEFAULT_PREFIX} unless {@link #getPropertyPrefix()}
+ * is overridden; see {@link AbstractHikariDataSourceProvider} for the pool tuning keys.
+ * <p>
+ * The driver's {@value #PROP_REWRITE_BATCHED_INSERTS} option, which sends a batch of {@code INSERT}s as
+ * multi-row statements, is enabled unless configured otherwise.
+ */
+public class PostgreSqlHikariDataSourceProvider extends AbstractHikariDataSourceProvider
+{
+   public static final String DEFAULT_PREFIX = "edu.tamu.tcat.db.postgresql";
+   public static final String PROP_REWRITE_BATCHED_INSERTS = "reWriteBatchedInserts";
+
+   @Override
+   protected String getPropertyPrefix()
+   {
+      return DEFAULT_PREFIX;
+   }
+
+   @Override
+   protected DataSource createDriverDataSource(ConfigurationProperties props) throws DataSourceException
+   {
+      String host = getProperty(props, PROP_HOST, String.class, null);
+      String database = getProperty(props, PROP_DATABASE, String.class, null);
+      String user = getProperty(props, PROP_USER, String.class, null);
+      String password = getProperty(props, PROP_PASSWORD, String.class, null);
+      Boolean ssl = getProperty(props, PROP_USE_SSL, Boolean.class, Boolean.FALSE);
+      Integer port = getProperty(props, PROP_PORT, Integer.class, null);
+      Boolean rewriteBatches = getProperty(props, PROP_REWRITE_BATCHED_INSERTS, Boolean.class, Boolean.TRUE);
+
+      PGSimpleDataSource ds = new PGSimpleDataSource();
+      ds.setServerName(host);
+      if (port != null)
+         ds.setPortNumber(port.intValue());
+      if (ssl.booleanValue())
+      {
+         ds.setSsl(true);
+         ds.setSslCert(null);
+         // This mode encrypts traffic but does not use client-side cert config at all
+         // See https://jdbc.postgresql.org/documentation/head/ssl-client.html
+         ds.setSslMode("require");
+      }
+
+      ds.setDatabaseName(database);
+      ds.setReWriteBatchedInserts(rewriteBatches.booleanValue());
+
+      if (user != null && !user.isEmpty() && password != null && ! password.isEmpty())
+      {
+         ds.setUser(user);
+         ds.setPassword(password);
+      }
+      else
+         throw new DataSourceException("Username and password must be specified");
+
+      return ds;
+   }
+}
@@ -15,15 +15,32 @@
  */
 package edu.tamu.tcat.db.mssql;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.sql.DataSource;
+
+import edu.tamu.tcat.db.core.ParallelCreation;
+
 public class MsSqlEntityHelper {
    private static final Logger debug = Logger.getLogger(MsSqlEntityHelper.class.getName());
 
+   /** The most names checked per catalog query, within the 2100 parameters SQL Server allows. */
+   private static final int MAX_CHECK_PARAMETERS = 2000;
+
    /**
     * @param connDefaultDb A connection to the db server on the database "postgres"
     * @param targetDatabase The name of the database to create
@@ -56,7 +73,7 @@ public class MsSqlEntityHelper {
       }
 
       debug.log(Level.INFO, "Database [" + targetDatabase + "] not found, creating it now");
-      String sqlCreate = "CREATE DATABASE \"" + targetDatabase + "\"";
+      String sqlCreate = "CREATE DATABASE " + quoteIdentifier(targetDatabase);
       try (PreparedStatement create = connDefaultDb.prepareStatement(sqlCreate))
       {
          create.executeUpdate();
@@ -100,7 +117,7 @@ public class MsSqlEntityHelper {
       }
 
       debug.log(Level.INFO, "Schema [" + targetSchemaName + "] not found, creating it now");
-      String sqlCreate = "CREATE SCHEMA \"" + targetSchemaName + "\"";
+      String sqlCreate = "CREATE SCHEMA " + quoteIdentifier(targetSchemaName);
       try (PreparedStatement create = conn.prepareStatement(sqlCreate))
       {
          debug.log(Level.INFO, "Schema [" + targetSchemaName + "] not found, creating it now");
@@ -113,5 +130,199 @@ public class MsSqlEntityHelper {
          return false;
       }
    }
-}
 
+   /**
+    * Create each of the given schemas that does not already exist. Existing schemas are found with a
+    * single catalog query and the missing ones are created in a single statement batch. If the batch
+    * fails, whatever of it ran under a transaction is rolled back, and each schema is then created by a
+    * statement of its own (under a savepoint if auto-commit is off).
+    *
+    * @param conn A connection to the database in which to create the schemas.
+    * @param targetSchemaNames The names of the schemas to create.
+    * @return The names of the schemas created; empty if the existence check failed.
+    * @since 1.1
+    */
+   public static Set<String> createSchemas(Connection conn, Collection<String> targetSchemaNames)
+   {
+      String sqlCheck = "SELECT name FROM sys.schemas WHERE name IN ";
+      Set<String> missing;
+      try
+      {
+         missing = findMissing(conn, sqlCheck, targetSchemaNames);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.SEVERE, "Failed checking for existence of schemas with sql ["+sqlCheck+"(...)]", e);
+         // don't try to create if exist check failed
+         return Collections.emptySet();
+      }
+
+      if (missing.isEmpty())
+         return missing;
+
+      debug.log(Level.INFO, "Schemas " + missing + " not found, creating them now");
+      List<String> names = new ArrayList<>(missing);
+      Savepoint savepoint = null;
+      try
+      {
+         if (!conn.getAutoCommit())
+            savepoint = conn.setSavepoint();
+
+         try (Statement create = conn.createStatement())
+         {
+            for (String name : names)
+               create.addBatch(sqlCreateSchema(name));
+            create.executeBatch();
+         }
+         return missing;
+      }
+      catch (BatchUpdateException e)
+      {
+         // each statement is guarded by an existence check, so those that did take effect are skipped below
+         debug.log(Level.WARNING, "Failed creating schemas " + missing + " in a batch; creating each separately", e);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.SEVERE, "Failed creating schemas " + missing, e);
+         return Collections.emptySet();
+      }
+
+      try
+      {
+         if (savepoint != null)
+            conn.rollback(savepoint);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.SEVERE, "Failed rolling back batch creating schemas " + missing, e);
+         return Collections.emptySet();
+      }
+      return createEachSchema(conn, names, savepoint != null);
+   }
+
+   /**
+    * Create each schema with a statement of its own, skipping those that fail.
+    *
+    * @param useSavepoints Whether to isolate each statement under a savepoint, so that one failure
+    *        cannot leave the connection's transaction unusable for the rest.
+    */
+   private static Set<String> createEachSchema(Connection conn, List<String> names, boolean useSavepoints)
+   {
+      Set<String> created = new LinkedHashSet<>();
+      for (String name : names)
+      {
+         String sqlCreate = sqlCreateSchema(name);
+         Savepoint savepoint = null;
+         try (Statement create = conn.createStatement())
+         {
+            // the SQL Server driver does not support releasing savepoints; they end with the transaction
+            if (useSavepoints)
+               savepoint = conn.setSavepoint();
+            create.executeUpdate(sqlCreate);
+            created.add(name);
+         }
+         catch (Exception e)
+         {
+            debug.log(Level.SEVERE, "Failed creating schema ["+name+"] with sql ["+sqlCreate+"]", e);
+            if (savepoint == null)
+               continue;
+
+            try
+            {
+               conn.rollback(savepoint);
+            }
+            catch (Exception ex)
+            {
+               debug.log(Level.SEVERE, "Failed rolling back creation of schema [" + name + "]", ex);
+               return created;
+            }
+         }
+      }
+      return created;
+   }
+
+   /**
+    * @return A statement creating the named schema unless it exists. CREATE SCHEMA must be the only
+    *         statement in its batch, so it is run through EXEC; the name is quoted as an identifier, and
+    *         the whole statement then quoted as a string literal.
+    */
+   private static String sqlCreateSchema(String name)
+   {
+      String createSql = "CREATE SCHEMA " + quoteIdentifier(name);
+      return "IF SCHEMA_ID(" + quoteLiteral(name) + ") IS NULL EXEC(" + quoteLiteral(createSql) + ")";
+   }
+
+   /**
+    * Create each of the given databases that does not already exist. Existing databases are found with
+    * a single catalog query; the missing databases are created in parallel, each on its own connection.
+    *
+    * @param dsDefaultDb A data source for connections to the db server on the database "master"
+    * @param targetDatabases The names of the databases to create
+    * @param parallelism The maximum number of databases to create concurrently.
+    * @return The names of the databases created; empty if the existence check failed.
+    * @since 1.1
+    */
+   public static Set<String> createDatabases(DataSource dsDefaultDb, Collection<String> targetDatabases, int parallelism)
+   {
+      String sqlCheck = "SELECT name FROM sys.databases WHERE name IN ";
+      Set<String> missing;
+      try (Connection conn = dsDefaultDb.getConnection())
+      {
+         missing = findMissing(conn, sqlCheck, targetDatabases);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.SEVERE, "Failed checking for existence of databases with sql ["+sqlCheck+"(...)]", e);
+         // don't try to create if exist check failed
+         return Collections.emptySet();
+      }
+
+      if (missing.isEmpty())
+         return missing;
+
+      debug.log(Level.INFO, "Databases " + missing + " not found, creating them now");
+      return ParallelCreation.create(dsDefaultDb, missing, name -> "CREATE DATABASE " + quoteIdentifier(name), parallelism);
+   }
+
+   /**
+    * @return The given name as a quoted identifier, with any embedded double quotes doubled.
+    */
+   private static String quoteIdentifier(String name)
+   {
+      return "\"" + name.replace("\"", "\"\"") + "\"";
+   }
+
+   /**
+    * @return The given value as a Unicode string literal, with any embedded single quotes doubled.
+    */
+   private static String quoteLiteral(String value)
+   {
+      return "N'" + value.replace("'", "''") + "'";
+   }
+
+   /**
+    * @param sqlCheck A catalog query ending in {@code IN }, to which a parameter list is appended for
+    *        each chunk of names, since SQL Server accepts at most 2100 parameters per statement.
+    */
+   private static Set<String> findMissing(Connection conn, String sqlCheck, Collection<String> names) throws SQLException
+   {
+      Set<String> missing = new LinkedHashSet<>(names);
+      List<String> all = new ArrayList<>(missing);
+      for (int from = 0; from < all.size(); from += MAX_CHECK_PARAMETERS)
+      {
+         List<String> chunk = all.subList(from, Math.min(all.size(), from + MAX_CHECK_PARAMETERS));
+         String params = String.join(",", Collections.nCopies(chunk.size(), "?"));
+         try (PreparedStatement existsCheck = conn.prepareStatement(sqlCheck + "(" + params + ")"))
+         {
+            for (int i = 0; i < chunk.size(); i++)
+               existsCheck.setString(i + 1, chunk.get(i));
+            try (ResultSet results = existsCheck.executeQuery())
+            {
+               while (results.next())
+                  missing.remove(results.getString(1));
+            }
+         }
+      }
+      return missing;
+   }
+}
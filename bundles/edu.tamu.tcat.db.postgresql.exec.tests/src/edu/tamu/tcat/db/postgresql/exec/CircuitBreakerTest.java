@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest
+{
+   /** Opens after ten failures, and is half-open as soon as it is next asked for a permit. */
+   private final CircuitBreaker breaker = new CircuitBreaker(0.5, 0, 0, TimeUnit.MILLISECONDS);
+
+   @Test
+   public void lateSuccessFromBeforeOpeningDoesNotClose()
+   {
+      CircuitBreaker.Permit late = breaker.tryAcquire();
+      open();
+
+      CircuitBreaker.Permit trial = breaker.tryAcquire();
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+      late.record(0, false);
+      late.record(0, false);
+      late.record(0, false);
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+      trial.record(0, false);
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+   }
+
+   @Test
+   public void lateFailureFromBeforeOpeningDoesNotReopen()
+   {
+      CircuitBreaker.Permit late = breaker.tryAcquire();
+      open();
+
+      List<CircuitBreaker.Permit> trials = new ArrayList<>();
+      for (int i = 0; i < 3; i++)
+         trials.add(breaker.tryAcquire());
+      assertNull(breaker.tryAcquire());
+
+      late.record(0, true);
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+      trials.forEach(t -> t.record(0, false));
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+   }
+
+   @Test
+   public void failedTrialReopens()
+   {
+      open();
+      CircuitBreaker.Permit trial = breaker.tryAcquire();
+      assertNotNull(trial);
+
+      trial.record(0, true);
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+   }
+
+   @Test
+   public void unusedTrialIsReturned()
+   {
+      open();
+      for (int i = 0; i < 3; i++)
+      {
+         CircuitBreaker.Permit trial = breaker.tryAcquire();
+         trial.releaseUnused();
+         trial.releaseUnused();
+      }
+      assertNotNull(breaker.tryAcquire());
+   }
+
+   private void open()
+   {
+      for (int i = 0; i < 10; i++)
+         breaker.tryAcquire().record(0, true);
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+   }
+}
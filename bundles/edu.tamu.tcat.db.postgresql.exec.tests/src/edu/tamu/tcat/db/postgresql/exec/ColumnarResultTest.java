@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ColumnarResultTest
+{
+   /** More rows than the initial capacity of a column. */
+   private static final int ROWS = 3000;
+
+   @Test
+   public void nullBitmapCoversRowsPastInitialCapacity() throws Exception
+   {
+      for (boolean offHeap : new boolean[] { false, true })
+      {
+         // a single null early on, so that the bitmap is never grown while reading
+         ColumnarResult result = ColumnarResult.read(resultSet(row -> row == 5), offHeap);
+
+         assertEquals(ROWS, result.getRowCount());
+         ColumnarResult.LongColumn ids = result.getLongColumn("id");
+         ColumnarResult.DoubleColumn amounts = result.getDoubleColumn("amount");
+         ColumnarResult.StringColumn names = result.getStringColumn("name");
+
+         assertTrue(ids.isNull(5));
+         assertFalse(ids.isNull(ROWS - 1));
+         assertNull(amounts.getObject(5));
+         assertEquals(Long.valueOf(ROWS - 1), ids.getObject(ROWS - 1));
+         assertEquals("name" + (ROWS - 1) % 3, names.get(ROWS - 1));
+
+         long expected = (long)ROWS * (ROWS - 1) / 2 - 5;
+         assertEquals(expected, ids.sum());
+         assertEquals(ROWS - 1, ids.max());
+      }
+   }
+
+   @Test
+   public void aggregatesSkipNullsAcrossWholeResult() throws Exception
+   {
+      ColumnarResult result = ColumnarResult.read(resultSet(row -> row % 1000 == 0), false);
+
+      Map<String, Integer> counts = ColumnarResult.countBy(result.getStringColumn("name"));
+      assertEquals(Integer.valueOf(ROWS / 3 - 1), counts.get("name0"));
+
+      Map<String, Double> sums = ColumnarResult.sumBy(result.getStringColumn("name"), result.getDoubleColumn("amount"));
+      double expected = 0;
+      for (int row = 0; row < ROWS; row++)
+      {
+         if (row % 1000 != 0 && row % 3 == 1)
+            expected += row * 0.5;
+      }
+      assertEquals(Double.valueOf(expected), sums.get("name1"));
+   }
+
+   private interface RowPredicate
+   {
+      boolean test(int row);
+   }
+
+   /**
+    * A result set of {@link #ROWS} rows with columns id (bigint), amount (double) and name (text). All
+    * columns are null in rows matching {@code isNull}.
+    */
+   private static ResultSet resultSet(RowPredicate isNull)
+   {
+      ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(ColumnarResultTest.class.getClassLoader(),
+            new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+               switch (method.getName())
+               {
+                  case "getColumnCount":
+                     return Integer.valueOf(3);
+                  case "getColumnLabel":
+                     return new String[] { "id", "amount", "name" }[(Integer)args[0] - 1];
+                  case "getColumnType":
+                     return new int[] { Types.BIGINT, Types.DOUBLE, Types.VARCHAR }[(Integer)args[0] - 1];
+                  default:
+                     return null;
+               }
+            });
+
+      int[] row = { -1 };
+      return (ResultSet)Proxy.newProxyInstance(ColumnarResultTest.class.getClassLoader(),
+            new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+               boolean nullRow = row[0] >= 0 && isNull.test(row[0]);
+               switch (method.getName())
+               {
+                  case "getMetaData":
+                     return meta;
+                  case "next":
+                     return Boolean.valueOf(++row[0] < ROWS);
+                  case "wasNull":
+                     return Boolean.valueOf(nullRow);
+                  case "getLong":
+                     return Long.valueOf(nullRow ? 0 : row[0]);
+                  case "getDouble":
+                     return Double.valueOf(nullRow ? 0 : row[0] * 0.5);
+                  case "getString":
+                     return nullRow ? null : "name" + row[0] % 3;
+                  default:
+                     return null;
+               }
+            });
+   }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DeadlineOrderTest
+{
+   private final PostgreSqlExecutor exec = new PostgreSqlExecutor();
+   private final FakeDatabase db = new FakeDatabase(10);
+   private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+   private final CountDownLatch gate = new CountDownLatch(1);
+   private final List<CompletableFuture<?>> submitted = new ArrayList<>();
+
+   @After
+   public void tearDown()
+   {
+      gate.countDown();
+      exec.close();
+   }
+
+   @Test(timeout = 20000)
+   public void deadlineTasksRunAheadOfUntimedTasks() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      block();
+
+      submit("untimed", null);
+      submit("late", Instant.now().plusSeconds(20));
+      submit("soon", Instant.now().plusSeconds(2));
+
+      runAll();
+      assertEquals(Arrays.asList("soon", "late", "untimed"), order);
+   }
+
+   @Test(timeout = 20000)
+   public void untimedTaskRunsAheadOfDistantDeadline() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      block();
+
+      submit("distant", Instant.now().plusSeconds(3600));
+      submit("untimed", null);
+
+      runAll();
+      assertEquals(Arrays.asList("untimed", "distant"), order);
+   }
+
+   @Test(timeout = 20000)
+   public void limitedExecutorKeepsDeadlineOrder() throws Exception
+   {
+      // spare threads, but one permit, held by the blocking task
+      AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1, 4);
+      exec.init(db.provider(), limit);
+      block();
+
+      submit("untimed", null);
+      submit("third", Instant.now().plusSeconds(10));
+      submit("first", Instant.now().plusSeconds(2));
+      submit("second", Instant.now().plusSeconds(5));
+      Thread.sleep(100);
+
+      runAll();
+      assertEquals(Arrays.asList("first", "second", "third", "untimed"), order);
+      awaitNoneInFlight(limit);
+   }
+
+   @Test(timeout = 20000)
+   public void expiredTaskReturnsItsPermit() throws Exception
+   {
+      AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1, 2);
+      exec.init(db.provider(), limit);
+      block();
+
+      CompletableFuture<?> expiring = exec.submit(conn -> "expired", Instant.now().plusMillis(50));
+      Thread.sleep(200);
+      gate.countDown();
+
+      try
+      {
+         expiring.get(10, TimeUnit.SECONDS);
+         fail("Expected the task to expire");
+      }
+      catch (ExecutionException e)
+      {
+         assertTrue(e.getCause() instanceof TimeoutException);
+      }
+      awaitNoneInFlight(limit);
+      assertEquals(1, db.getOpened().size());
+   }
+
+   /**
+    * Occupy the executor until the gate opens.
+    */
+   private void block() throws InterruptedException
+   {
+      CountDownLatch started = new CountDownLatch(1);
+      submitted.add(exec.submit(conn -> {
+         started.countDown();
+         gate.await();
+         return null;
+      }));
+      started.await();
+   }
+
+   private void submit(String name, Instant deadline)
+   {
+      if (deadline == null)
+         submitted.add(exec.submit(conn -> order.add(name)));
+      else
+         submitted.add(exec.submit(conn -> order.add(name), deadline));
+   }
+
+   private void runAll() throws Exception
+   {
+      gate.countDown();
+      CompletableFuture.allOf(submitted.toArray(new CompletableFuture<?>[submitted.size()])).get(10, TimeUnit.SECONDS);
+   }
+
+   private static void awaitNoneInFlight(AdaptiveConcurrencyLimit limit) throws InterruptedException
+   {
+      // permits are returned just after each task completes
+      for (int i = 0; i < 100 && limit.getInFlight() > 0; i++)
+         Thread.sleep(10);
+      assertEquals(0, limit.getInFlight());
+   }
+}
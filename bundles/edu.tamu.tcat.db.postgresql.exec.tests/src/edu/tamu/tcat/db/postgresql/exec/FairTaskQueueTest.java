@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FairTaskQueueTest
+{
+   private final FairTaskQueue queue = new FairTaskQueue();
+
+   public FairTaskQueueTest()
+   {
+      queue.setKeyFunction(r -> ((Keyed)r).key);
+   }
+
+   @Test(timeout = 20000)
+   public void idleKeyAheadOfItsShareIsForgottenOnceOthersCatchUp() throws Exception
+   {
+      // one costly task puts the key well ahead of virtual time as it goes idle
+      runOne("burst", 50);
+      assertTrue(lanes().containsKey("burst"));
+
+      for (int i = 0; i < 20 && lanes().containsKey("burst"); i++)
+         runOne("steady", 10);
+
+      assertFalse(lanes().containsKey("burst"));
+   }
+
+   @Test(timeout = 20000)
+   public void idleKeyAheadOfItsShareStillWaitsItsTurn() throws Exception
+   {
+      runOne("burst", 50);
+
+      queue.offer(new Keyed("burst", 0));
+      queue.offer(new Keyed("steady", 0));
+      assertEquals("steady", ((Keyed)unwrap(queue.take())).key);
+   }
+
+   private void runOne(String key, long millis) throws Exception
+   {
+      queue.offer(new Keyed(key, millis));
+      queue.take().run();
+   }
+
+   @SuppressWarnings("unchecked")
+   private Map<Object, ?> lanes() throws Exception
+   {
+      Field lanes = FairTaskQueue.class.getDeclaredField("lanes");
+      lanes.setAccessible(true);
+      return (Map<Object, ?>)lanes.get(queue);
+   }
+
+   private static Runnable unwrap(Runnable dispatched) throws Exception
+   {
+      Field task = dispatched.getClass().getDeclaredField("task");
+      task.setAccessible(true);
+      return (Runnable)task.get(dispatched);
+   }
+
+   private static class Keyed implements Runnable
+   {
+      private final String key;
+      private final long millis;
+
+      Keyed(String key, long millis)
+      {
+         this.key = key;
+         this.millis = millis;
+      }
+
+      @Override
+      public void run()
+      {
+         try
+         {
+            Thread.sleep(millis);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+
+import edu.tamu.tcat.db.provider.DataSourceProvider;
+
+/**
+ * An in-memory stand-in for a pooled PostgreSQL data source. Records the transaction events and SQL of
+ * each connection, and limits the number of connections open at once.
+ */
+final class FakeDatabase
+{
+   private final Semaphore available;
+   private final List<FakeConnection> opened = new CopyOnWriteArrayList<>();
+   private final DataSource dataSource;
+
+   FakeDatabase(int maxConnections)
+   {
+      available = new Semaphore(maxConnections);
+      dataSource = proxy(DataSource.class, (proxy, method, args) -> {
+         if (method.getName().equals("getConnection"))
+            return connect();
+         return defaultValue(method.getReturnType());
+      });
+   }
+
+   DataSourceProvider provider()
+   {
+      return () -> dataSource;
+   }
+
+   /**
+    * @return The connections opened so far, in order.
+    */
+   List<FakeConnection> getOpened()
+   {
+      return opened;
+   }
+
+   static FakeConnection of(Connection conn) throws SQLException
+   {
+      return conn.unwrap(FakeConnection.class);
+   }
+
+   private Connection connect() throws SQLException, InterruptedException
+   {
+      // bounded, so that a test that deadlocks fails rather than hangs
+      if (!available.tryAcquire(10, TimeUnit.SECONDS))
+         throw new SQLException("Timed out waiting for a connection");
+
+      FakeConnection conn = new FakeConnection();
+      opened.add(conn);
+      return conn.proxy;
+   }
+
+   @SuppressWarnings("unchecked")
+   private static <T> T proxy(Class<T> type, InvocationHandler handler)
+   {
+      return (T)Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[] { type }, handler);
+   }
+
+   private static Object defaultValue(Class<?> type)
+   {
+      if (type == boolean.class)
+         return Boolean.FALSE;
+      if (type == int.class)
+         return Integer.valueOf(0);
+      if (type == long.class)
+         return Long.valueOf(0);
+      return null;
+   }
+
+   final class FakeConnection implements InvocationHandler
+   {
+      /** "commit", "rollback", "cancel" and the SQL executed, in order. */
+      final List<String> events = new CopyOnWriteArrayList<>();
+      private final CountDownLatch cancelled = new CountDownLatch(1);
+      private final Connection proxy;
+      private volatile boolean closed;
+
+      FakeConnection()
+      {
+         proxy = (Connection)Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(),
+               new Class<?>[] { Connection.class, PGConnection.class }, this);
+      }
+
+      /**
+       * Block as a long-running statement would, until cancelled through {@link PGConnection#cancelQuery()}.
+       *
+       * @throws SQLException Once cancelled, as the driver reports a cancelled statement.
+       */
+      void awaitCancel() throws SQLException, InterruptedException
+      {
+         if (!cancelled.await(10, TimeUnit.SECONDS))
+            throw new IllegalStateException("Statement was never cancelled");
+         throw new SQLException("canceling statement due to user request", "57014");
+      }
+
+      boolean isClosed()
+      {
+         return closed;
+      }
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         switch (method.getName())
+         {
+            case "unwrap":
+               return args[0] == FakeConnection.class ? this : proxy;
+            case "isWrapperFor":
+               return Boolean.valueOf(args[0] == FakeConnection.class || ((Class<?>)args[0]).isInstance(proxy));
+            case "commit":
+            case "rollback":
+               if (args == null)
+                  events.add(method.getName());
+               return null;
+            case "cancelQuery":
+               events.add("cancel");
+               cancelled.countDown();
+               return null;
+            case "close":
+               if (!closed)
+               {
+                  closed = true;
+                  available.release();
+               }
+               return null;
+            case "isClosed":
+               return Boolean.valueOf(closed);
+            case "createStatement":
+               return statement(Statement.class, null);
+            case "prepareStatement":
+               return statement(PreparedStatement.class, (String)args[0]);
+            case "setSavepoint":
+               return FakeDatabase.proxy(Savepoint.class, (p, m, a) -> defaultValue(m.getReturnType()));
+            default:
+               return defaultValue(method.getReturnType());
+         }
+      }
+
+      /**
+       * A statement that records the SQL it executes, and reports one row updated by each statement
+       * and each batched parameter set.
+       */
+      private <S extends Statement> S statement(Class<S> type, String prepared)
+      {
+         int[] batched = { 0 };
+         return FakeDatabase.proxy(type, (p, m, a) -> {
+            if (m.getName().startsWith("execute"))
+               events.add(a != null && a.length > 0 && a[0] instanceof String ? (String)a[0] : prepared);
+            switch (m.getName())
+            {
+               case "addBatch":
+                  batched[0]++;
+                  return null;
+               case "executeBatch":
+                  int[] counts = new int[batched[0]];
+                  Arrays.fill(counts, 1);
+                  batched[0] = 0;
+                  return counts;
+               case "executeUpdate":
+                  return Integer.valueOf(1);
+               default:
+                  return defaultValue(m.getReturnType());
+            }
+         });
+      }
+   }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.tamu.tcat.db.exec.sql.SqlExecutor;
+import edu.tamu.tcat.db.postgresql.exec.FakeDatabase.FakeConnection;
+
+public class ForkJoinTest
+{
+   private final PostgreSqlExecutor exec = new PostgreSqlExecutor();
+
+   @After
+   public void tearDown()
+   {
+      exec.close();
+   }
+
+   @Test(timeout = 20000)
+   public void joinRunsForkWaitingForConnection() throws Exception
+   {
+      // the parent holds the only connection, so a worker taking the fork blocks on the pool
+      FakeDatabase db = new FakeDatabase(1);
+      exec.init(db.provider(), Integer.valueOf(2));
+
+      String result = exec.submit((SqlExecutor.ContextTask<String>)(conn, ctx) -> {
+         SqlExecutor.Subtask<String> sub = ctx.fork(c -> "child");
+         Thread.sleep(200);
+         return sub.join();
+      }).get(15, TimeUnit.SECONDS);
+
+      assertEquals("child", result);
+   }
+
+   @Test(timeout = 20000)
+   public void joinRunsForkWaitingForPermitUnderSaturatedLimit() throws Exception
+   {
+      // two threads, but only one task may be in flight: the parent
+      FakeDatabase db = new FakeDatabase(10);
+      exec.init(db.provider(), new AdaptiveConcurrencyLimit(1, 1, 2));
+
+      String result = exec.submit((SqlExecutor.ContextTask<String>)(conn, ctx) -> {
+         SqlExecutor.Subtask<String> sub = ctx.fork(c -> "child");
+         Thread.sleep(200);
+         return sub.join();
+      }).get(15, TimeUnit.SECONDS);
+
+      assertEquals("child", result);
+      assertEquals(1, db.getOpened().size());
+   }
+
+   @Test(timeout = 20000)
+   public void failingParentCancelsRunningForkStatement() throws Exception
+   {
+      FakeDatabase db = new FakeDatabase(2);
+      exec.init(db.provider(), Integer.valueOf(2));
+      CountDownLatch started = new CountDownLatch(1);
+
+      try
+      {
+         exec.submit((SqlExecutor.ContextTask<Void>)(conn, ctx) -> {
+            ctx.fork(c -> {
+               started.countDown();
+               FakeDatabase.of(c).awaitCancel();
+               return null;
+            });
+            started.await();
+            throw new IllegalStateException("parent failed");
+         }).get(15, TimeUnit.SECONDS);
+         fail("Expected the parent to fail");
+      }
+      catch (ExecutionException e)
+      {
+         assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+
+      // the parent completes only after its fork has finished
+      FakeConnection fork = db.getOpened().get(1);
+      assertTrue(fork.events.contains("cancel"));
+      assertTrue(fork.events.contains("rollback"));
+      assertFalse(fork.events.contains("commit"));
+      assertTrue(fork.isClosed());
+   }
+
+   @Test(timeout = 20000)
+   public void cancelledForkRollsBackInsteadOfCommitting() throws Exception
+   {
+      FakeDatabase db = new FakeDatabase(2);
+      exec.init(db.provider(), Integer.valueOf(2));
+      CountDownLatch started = new CountDownLatch(1);
+
+      exec.submit((SqlExecutor.ContextTask<Void>)(conn, ctx) -> {
+         SqlExecutor.Subtask<String> sub = ctx.fork((SqlExecutor.ContextTask<String>)(c, forkCtx) -> {
+            started.countDown();
+            while (!forkCtx.isCancelled())
+               Thread.sleep(5);
+            // ignores the cancellation and returns normally
+            return "done";
+         });
+         started.await();
+         sub.cancel();
+         return null;
+      }).get(15, TimeUnit.SECONDS);
+
+      FakeConnection fork = db.getOpened().get(1);
+      assertTrue(fork.events.contains("rollback"));
+      assertFalse(fork.events.contains("commit"));
+   }
+
+   @Test(timeout = 20000)
+   public void parentWaitsForUnjoinedRunningFork() throws Exception
+   {
+      FakeDatabase db = new FakeDatabase(2);
+      exec.init(db.provider(), Integer.valueOf(2));
+      CountDownLatch started = new CountDownLatch(1);
+      AtomicBoolean forkFinished = new AtomicBoolean();
+
+      exec.submit((SqlExecutor.ContextTask<Void>)(conn, ctx) -> {
+         ctx.fork(c -> {
+            started.countDown();
+            Thread.sleep(200);
+            forkFinished.set(true);
+            return null;
+         });
+         started.await();
+         return null;
+      }).get(15, TimeUnit.SECONDS);
+
+      assertTrue(forkFinished.get());
+      assertTrue(db.getOpened().get(1).events.contains("commit"));
+   }
+
+   @Test
+   public void contextTaskForksSeriallyWithoutExecutorContext() throws Exception
+   {
+      // an executor that supplies no context runs the task through execute(Connection)
+      FakeDatabase db = new FakeDatabase(1);
+      Connection conn = db.provider().getDataSource().getConnection();
+
+      SqlExecutor.ContextTask<String> task = (c, ctx) -> {
+         SqlExecutor.Subtask<String> sub = ctx.fork(child -> {
+            child.createStatement().execute("SELECT 'child'");
+            return "child";
+         });
+         assertTrue(sub.isDone());
+         return sub.join();
+      };
+
+      assertEquals("child", task.execute(conn));
+      assertEquals(1, db.getOpened().size());
+      assertTrue(db.getOpened().get(0).events.contains("SELECT 'child'"));
+   }
+}
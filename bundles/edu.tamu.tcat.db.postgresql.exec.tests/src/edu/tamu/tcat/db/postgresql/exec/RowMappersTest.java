@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RowMappersTest
+{
+   public static class Item
+   {
+      public long id;
+      public String name;
+   }
+
+   @Test
+   public void resultMapperReadsMetadataOnce() throws Exception
+   {
+      AtomicInteger metadataReads = new AtomicInteger();
+      ResultSetMetaData meta = metadata(metadataReads, "id", "name");
+
+      RowMapper<Item> mapper = RowMappers.of(Item.class).forResult(meta);
+      int reads = metadataReads.get();
+      Item first = mapper.map(row(meta, 1L, "one"));
+      Item second = mapper.map(row(meta, 2L, "two"));
+
+      assertEquals(1L, first.id);
+      assertEquals("one", first.name);
+      assertEquals(2L, second.id);
+      assertEquals("two", second.name);
+      assertEquals(reads, metadataReads.get());
+   }
+
+   @Test
+   public void mapperResolvesEachNewResultShape() throws Exception
+   {
+      RowMapper<Item> mapper = RowMappers.of(Item.class);
+      ResultSetMetaData both = metadata(new AtomicInteger(), "id", "name");
+      ResultSetMetaData nameOnly = metadata(new AtomicInteger(), "name");
+
+      assertEquals("one", mapper.map(row(both, 1L, "one")).name);
+      assertEquals("two", mapper.map(row(nameOnly, "two")).name);
+   }
+
+   private static ResultSetMetaData metadata(AtomicInteger reads, String... labels)
+   {
+      return (ResultSetMetaData)Proxy.newProxyInstance(RowMappersTest.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class }, (p, m, a) -> {
+         reads.incrementAndGet();
+         if (m.getName().equals("getColumnCount"))
+            return Integer.valueOf(labels.length);
+         if (m.getName().equals("getColumnLabel"))
+            return labels[((Integer)a[0]).intValue() - 1];
+         return null;
+      });
+   }
+
+   /**
+    * @return A result set positioned on a single row with the given values.
+    */
+   private static ResultSet row(ResultSetMetaData meta, Object... values)
+   {
+      return (ResultSet)Proxy.newProxyInstance(RowMappersTest.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (p, m, a) -> {
+         switch (m.getName())
+         {
+            case "getMetaData":
+               return meta;
+            case "wasNull":
+               return Boolean.FALSE;
+            case "getLong":
+            case "getString":
+               return values[((Integer)a[0]).intValue() - 1];
+            default:
+               throw new UnsupportedOperationException(m.getName());
+         }
+      });
+   }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.tamu.tcat.db.exec.sql.SqlExecutor;
+
+public class StatementBatcherTest
+{
+   private static final String SQL = "INSERT INTO t (v) VALUES (?)";
+
+   private final PostgreSqlExecutor exec = new PostgreSqlExecutor();
+   private final FakeDatabase db = new FakeDatabase(2);
+
+   @After
+   public void tearDown()
+   {
+      exec.close();
+   }
+
+   @Test(timeout = 20000)
+   public void fullBatchCompletesEachCaller() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      StatementBatcher batcher = new StatementBatcher(exec, 3, 1, TimeUnit.HOURS);
+
+      CompletableFuture<Integer> a = batcher.submit(SQL, Integer.valueOf(1));
+      CompletableFuture<Integer> b = batcher.submit(SQL, Integer.valueOf(2));
+      CompletableFuture<Integer> c = batcher.submit(SQL, Integer.valueOf(3));
+
+      assertEquals(Integer.valueOf(1), a.get(10, TimeUnit.SECONDS));
+      assertEquals(Integer.valueOf(1), b.get(10, TimeUnit.SECONDS));
+      assertEquals(Integer.valueOf(1), c.get(10, TimeUnit.SECONDS));
+      assertEquals(1, db.getOpened().size());
+   }
+
+   @Test(timeout = 20000)
+   public void submitAfterCloseFails() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      StatementBatcher batcher = new StatementBatcher(exec, 3, 1, TimeUnit.HOURS);
+      batcher.close();
+
+      assertFails(batcher.submit(SQL, Integer.valueOf(1)), IllegalStateException.class);
+   }
+
+   @Test(timeout = 20000)
+   public void batchRejectedByClosedExecutorFailsCallers() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      StatementBatcher batcher = new StatementBatcher(exec, 2, 1, TimeUnit.HOURS);
+      exec.close();
+
+      CompletableFuture<Integer> a = batcher.submit(SQL, Integer.valueOf(1));
+      CompletableFuture<Integer> b = batcher.submit(SQL, Integer.valueOf(2));
+
+      assertFails(a, RejectedExecutionException.class);
+      assertFails(b, RejectedExecutionException.class);
+   }
+
+   @Test(timeout = 20000)
+   public void closeFlushesIntoClosedExecutorAndFailsCallers() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      StatementBatcher batcher = new StatementBatcher(exec, 10, 1, TimeUnit.HOURS);
+      CompletableFuture<Integer> a = batcher.submit(SQL, Integer.valueOf(1));
+      exec.close();
+      batcher.close();
+
+      assertFails(a, RejectedExecutionException.class);
+   }
+
+   @Test(timeout = 20000)
+   public void retryRejectedAfterBatchFailureFailsCallers() throws Exception
+   {
+      // fails the batch, then rejects the individual retries, as an executor closed meanwhile would
+      AtomicInteger submissions = new AtomicInteger();
+      SqlExecutor failing = new SqlExecutor()
+      {
+         @Override
+         public <X> CompletableFuture<X> submit(ExecutorTask<X> task)
+         {
+            if (submissions.getAndIncrement() > 0)
+               throw new RejectedExecutionException("closed");
+            CompletableFuture<X> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalStateException("batch failed"));
+            return result;
+         }
+      };
+      StatementBatcher batcher = new StatementBatcher(failing, 2, 1, TimeUnit.HOURS);
+
+      CompletableFuture<Integer> a = batcher.submit(SQL, Integer.valueOf(1));
+      CompletableFuture<Integer> b = batcher.submit(SQL, Integer.valueOf(2));
+
+      assertFails(a, RejectedExecutionException.class);
+      assertFails(b, RejectedExecutionException.class);
+   }
+
+   @Test(timeout = 20000)
+   public void slowCallbackDoesNotStallOtherBatches() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(2));
+      StatementBatcher first = new StatementBatcher(exec, 1, 1, TimeUnit.HOURS);
+      StatementBatcher second = new StatementBatcher(exec, 1, 1, TimeUnit.HOURS);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch blocked = new CountDownLatch(1);
+
+      first.submit(SQL, Integer.valueOf(1)).thenRun(() -> {
+         blocked.countDown();
+         try
+         {
+            release.await();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      });
+      assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+      try
+      {
+         assertEquals(Integer.valueOf(1), second.submit(SQL, Integer.valueOf(2)).get(5, TimeUnit.SECONDS));
+      }
+      finally
+      {
+         release.countDown();
+      }
+   }
+
+   private static void assertFails(CompletableFuture<Integer> result, Class<? extends Throwable> type) throws Exception
+   {
+      try
+      {
+         result.get(10, TimeUnit.SECONDS);
+         fail("Expected " + type.getSimpleName());
+      }
+      catch (ExecutionException e)
+      {
+         assertTrue(String.valueOf(e.getCause()), type.isInstance(e.getCause()));
+      }
+   }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TenantSearchPathTest
+{
+   private final PostgreSqlExecutor exec = new PostgreSqlExecutor();
+   private final FakeDatabase db = new FakeDatabase(2);
+
+   @After
+   public void tearDown()
+   {
+      exec.close();
+   }
+
+   @Test(timeout = 20000)
+   public void tenantSearchPathIsLocalToTheTransaction() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      exec.submit("acme", conn -> null).get(10, TimeUnit.SECONDS);
+
+      assertEquals(Arrays.asList("SET LOCAL search_path TO \"acme\"", "commit"), db.getOpened().get(0).events);
+   }
+
+   @Test(timeout = 20000)
+   public void untenantedTaskAfterTenantTaskSetsNothing() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      exec.submit("acme", conn -> null).get(10, TimeUnit.SECONDS);
+      exec.submit(conn -> null).get(10, TimeUnit.SECONDS);
+
+      assertEquals(Collections.singletonList("commit"), db.getOpened().get(1).events);
+   }
+
+   @Test(timeout = 20000)
+   public void schemaNameIsQuoted() throws Exception
+   {
+      exec.init(db.provider(), Integer.valueOf(1));
+      exec.submit("a\"b", conn -> null).get(10, TimeUnit.SECONDS);
+
+      assertEquals("SET LOCAL search_path TO \"a\"\"b\"", db.getOpened().get(0).events.get(0));
+   }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrency limit that adapts to observed task latency, bounding the number of tasks in flight
+ * against a data source.
+ * <p>
+ * The limit follows a gradient: a long-term (baseline) latency average is compared to each new sample.
+ * While samples stay near the baseline the limit grows by roughly {@code sqrt(limit)}; when samples
+ * exceed the baseline (queueing inside the database) the limit shrinks in proportion. Failures to
+ * obtain a connection are treated as drops and decrease the limit multiplicatively (AIMD). The limit is
+ * always kept between the configured minimum and maximum.
+ * <p>
+ * Instances are thread-safe. The current {@link #getLimit() limit} and {@link #getInFlight() in-flight}
+ * count may be polled for monitoring.
+ *
+ * @since 1.5
+ */
+public class AdaptiveConcurrencyLimit
+{
+   /** Number of samples over which the baseline latency is averaged. */
+   private static final int BASELINE_WINDOW = 600;
+   /** Latency ratio over the baseline tolerated before the limit is reduced. */
+   private static final double TOLERANCE = 1.5;
+   /** Weight of each new limit estimate relative to the current limit. */
+   private static final double SMOOTHING = 0.2;
+   /** Factor applied to the limit when a task is dropped. */
+   private static final double BACKOFF = 0.9;
+
+   private final int minLimit;
+   private final int maxLimit;
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition available = lock.newCondition();
+
+   // guarded by lock
+   private double limit;
+   private double baselineNanos = Double.NaN;
+   private int inFlight;
+
+   /**
+    * @param initialLimit The starting limit.
+    * @param minLimit The smallest limit allowed; must be at least 1.
+    * @param maxLimit The largest limit allowed.
+    */
+   public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit)
+   {
+      if (minLimit < 1)
+         throw new IllegalArgumentException("Minimum limit must be at least 1, but was " + minLimit);
+      if (maxLimit < minLimit)
+         throw new IllegalArgumentException("Maximum limit [" + maxLimit + "] is less than minimum limit [" + minLimit + "]");
+
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+      this.limit = clamp(initialLimit);
+   }
+
+   public int getMinLimit()
+   {
+      return minLimit;
+   }
+
+   public int getMaxLimit()
+   {
+      return maxLimit;
+   }
+
+   /**
+    * @return The current number of tasks allowed to run concurrently.
+    */
+   public int getLimit()
+   {
+      lock.lock();
+      try
+      {
+         return (int)limit;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return The number of tasks currently holding a permit.
+    */
+   public int getInFlight()
+   {
+      lock.lock();
+      try
+      {
+         return inFlight;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return The baseline task latency in milliseconds, or {@code NaN} if no task has completed.
+    */
+   public double getBaselineLatencyMillis()
+   {
+      lock.lock();
+      try
+      {
+         return baselineNanos / TimeUnit.MILLISECONDS.toNanos(1);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Block until the number of tasks in flight is below the current limit, then take a permit. Each
+    * successful call must be matched by a call to {@link #release(long, boolean)}.
+    */
+   public void acquire() throws InterruptedException
+   {
+      lock.lockInterruptibly();
+      try
+      {
+         while (inFlight >= (int)limit)
+            available.await();
+         inFlight++;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Take a permit if the number of tasks in flight is below the current limit.
+    *
+    * @return {@code true} if a permit was taken.
+    */
+   boolean tryAcquire()
+   {
+      lock.lock();
+      try
+      {
+         if (inFlight >= (int)limit)
+            return false;
+         inFlight++;
+         return true;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Block until the number of tasks in flight is below the current limit, without taking a permit.
+    *
+    * @return {@code false} if the timeout elapsed first.
+    */
+   boolean awaitAvailable(long timeout, TimeUnit unit) throws InterruptedException
+   {
+      long nanos = unit.toNanos(timeout);
+      lock.lockInterruptibly();
+      try
+      {
+         while (inFlight >= (int)limit)
+         {
+            if (nanos <= 0)
+               return false;
+            nanos = available.awaitNanos(nanos);
+         }
+         return true;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Return a permit and record the outcome of the task that held it.
+    *
+    * @param latencyNanos The time the task spent holding the permit.
+    * @param dropped {@code true} if the task could not be run against the data source (e.g. no
+    *        connection could be obtained), in which case the limit is reduced.
+    */
+   public void release(long latencyNanos, boolean dropped)
+   {
+      lock.lock();
+      try
+      {
+         int observedInFlight = inFlight;
+         inFlight--;
+
+         if (dropped)
+            limit = clamp(limit * BACKOFF);
+         else
+            update(latencyNanos, observedInFlight);
+
+         available.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Return a permit that was not used to run a task, e.g. because the task was abandoned while waiting
+    * for it, without recording an outcome.
+    */
+   public void releaseUnused()
+   {
+      lock.lock();
+      try
+      {
+         inFlight--;
+         available.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   // called with lock held
+   private void update(long latencyNanos, int observedInFlight)
+   {
+      double sample = Math.max(1, latencyNanos);
+      if (Double.isNaN(baselineNanos))
+         baselineNanos = sample;
+      else
+         baselineNanos += (sample - baselineNanos) / BASELINE_WINDOW;
+
+      // After a period of high latency the baseline drifts up; pull it down once latency recovers.
+      if (baselineNanos / sample > 2)
+         baselineNanos *= 0.95;
+
+      double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baselineNanos / sample));
+
+      // Do not grow the limit when the load does not use it; the latency says nothing about a higher limit.
+      if (gradient >= 1.0 && observedInFlight < limit / 2)
+         return;
+
+      double estimate = gradient * limit + Math.sqrt(limit);
+      limit = clamp(limit * (1 - SMOOTHING) + estimate * SMOOTHING);
+   }
+
+   private double clamp(double value)
+   {
+      return Math.max(minLimit, Math.min(maxLimit, value));
+   }
+
+   @Override
+   public String toString()
+   {
+      return "AdaptiveConcurrencyLimit[limit=" + getLimit() + ", inFlight=" + getInFlight() + ", range=" + minLimit + ".." + maxLimit + "]";
+   }
+}
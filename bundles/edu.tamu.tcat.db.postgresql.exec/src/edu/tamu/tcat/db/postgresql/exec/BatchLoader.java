@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import edu.tamu.tcat.db.exec.sql.SqlExecutor;
+
+/**
+ * Loads values by key, collecting the keys requested by many callers into a single query.
+ * <p>
+ * Keys requested through {@link #load(Object)} are held for a short window, or until a maximum number
+ * have been collected, and are then looked up together by one task running a query with a single array
+ * parameter, e.g. {@code SELECT * FROM item WHERE id = ANY(?)}. Each caller's future completes with the
+ * value for its key, or {@code null} if the query returned no row for it. A key requested several
+ * times within a window is looked up once.
+ * <p>
+ * Loaders may optionally {@link #setCaching(boolean) cache} the values they have loaded. Since a cached
+ * value is never refreshed, a caching loader is intended to live for the duration of a single request.
+ * <p>
+ * Futures returned by a loader must not be awaited from within a task of the executor the loader runs
+ * on, since the lookup task may be queued behind the waiting task.
+ *
+ * @param <K> The type of key.
+ * @param <V> The type of value.
+ * @since 1.5
+ */
+public class BatchLoader<K, V> implements AutoCloseable
+{
+   private static final ScheduledThreadPoolExecutor timer;
+   static
+   {
+      timer = new ScheduledThreadPoolExecutor(1, r -> {
+         Thread t = new Thread(r, "BatchLoader dispatch");
+         t.setDaemon(true);
+         return t;
+      });
+      timer.setRemoveOnCancelPolicy(true);
+   }
+
+   private final SqlExecutor executor;
+   private final String sql;
+   private final String keyType;
+   private final RowMapper<? extends K> keyMapper;
+   private final RowMapper<? extends V> valueMapper;
+   private final int maxBatchSize;
+   private final long windowNanos;
+
+   private volatile boolean caching;
+   private final Map<K, CompletableFuture<V>> cache = new ConcurrentHashMap<>();
+
+   // guarded by this
+   private Map<K, CompletableFuture<V>> pending = new LinkedHashMap<>();
+   private ScheduledFuture<?> scheduled;
+
+   /**
+    * @param executor The executor on which lookups run.
+    * @param sql A query with a single parameter for an array of keys, e.g.
+    *        {@code SELECT id, name FROM item WHERE id = ANY(?)}.
+    * @param keyType The SQL type name of the keys, used to create the array, e.g. {@code bigint} or
+    *        {@code text}.
+    * @param keyMapper Reads the key of each row.
+    * @param valueMapper Reads the value of each row.
+    * @param maxBatchSize The number of keys at which a lookup runs immediately.
+    * @param window The longest time a key waits for others to join its lookup.
+    */
+   public BatchLoader(SqlExecutor executor, String sql, String keyType, RowMapper<? extends K> keyMapper,
+                      RowMapper<? extends V> valueMapper, int maxBatchSize, long window, TimeUnit unit)
+   {
+      if (maxBatchSize < 1)
+         throw new IllegalArgumentException("Batch size must be at least 1, but was " + maxBatchSize);
+
+      this.executor = executor;
+      this.sql = sql;
+      this.keyType = keyType;
+      this.keyMapper = keyMapper;
+      this.valueMapper = valueMapper;
+      this.maxBatchSize = maxBatchSize;
+      this.windowNanos = unit.toNanos(window);
+   }
+
+   /**
+    * @param caching {@code true} to keep loaded values, and serve later requests for their keys without
+    *        a query. Turning caching off clears the cache.
+    */
+   public BatchLoader<K, V> setCaching(boolean caching)
+   {
+      this.caching = caching;
+      if (!caching)
+         cache.clear();
+      return this;
+   }
+
+   /**
+    * Request the value for a key.
+    *
+    * @return A future for the value, or for {@code null} if there is none.
+    */
+   public CompletableFuture<V> load(K key)
+   {
+      if (caching)
+      {
+         CompletableFuture<V> cached = cache.get(key);
+         if (cached != null)
+            return cached;
+      }
+
+      CompletableFuture<V> result;
+      Map<K, CompletableFuture<V>> full = null;
+      synchronized (this)
+      {
+         result = pending.get(key);
+         if (result == null)
+         {
+            result = new CompletableFuture<>();
+            pending.put(key, result);
+            if (caching)
+               cache.putIfAbsent(key, result);
+            if (pending.size() >= maxBatchSize)
+               full = takePending();
+            else if (scheduled == null)
+               scheduled = timer.schedule(this::runPending, windowNanos, TimeUnit.NANOSECONDS);
+         }
+      }
+
+      if (full != null)
+         dispatch(full);
+      return result;
+   }
+
+   /**
+    * Request the values for several keys.
+    *
+    * @return A future for the value of each key that has one.
+    */
+   public CompletableFuture<Map<K, V>> loadAll(Collection<? extends K> keys)
+   {
+      Map<K, CompletableFuture<V>> results = new LinkedHashMap<>();
+      for (K key : keys)
+         results.put(key, load(key));
+
+      return CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[results.size()])).thenApply(ignored -> {
+         Map<K, V> values = new LinkedHashMap<>();
+         results.forEach((key, future) -> {
+            V value = future.join();
+            if (value != null)
+               values.put(key, value);
+         });
+         return values;
+      });
+   }
+
+   /**
+    * Remove a key from the cache, so that the next request for it runs a query.
+    */
+   public void clear(K key)
+   {
+      cache.remove(key);
+   }
+
+   public void clearAll()
+   {
+      cache.clear();
+   }
+
+   /**
+    * Look up all keys requested so far without waiting for the window to end. The lookup is submitted
+    * from the loader's own thread, so this may be called from within a task of the executor.
+    */
+   public void flush()
+   {
+      Map<K, CompletableFuture<V>> batch;
+      synchronized (this)
+      {
+         batch = takePending();
+      }
+      if (!batch.isEmpty())
+         dispatch(batch);
+   }
+
+   /**
+    * Look up any requested keys and clear the cache. Does not close the underlying executor.
+    */
+   @Override
+   public void close()
+   {
+      flush();
+      cache.clear();
+   }
+
+   private Map<K, CompletableFuture<V>> takePending()
+   {
+      Map<K, CompletableFuture<V>> batch = pending;
+      pending = new LinkedHashMap<>();
+      if (scheduled != null)
+      {
+         scheduled.cancel(false);
+         scheduled = null;
+      }
+      return batch;
+   }
+
+   /**
+    * Run the pending lookup on the timer thread, when its window ends.
+    */
+   private void runPending()
+   {
+      Map<K, CompletableFuture<V>> batch;
+      synchronized (this)
+      {
+         batch = takePending();
+      }
+      if (!batch.isEmpty())
+         run(batch);
+   }
+
+   private void dispatch(Map<K, CompletableFuture<V>> batch)
+   {
+      // never submit from the caller's thread: if it is running a task of the executor, the lookup
+      // would run inline in that task's transaction
+      timer.execute(() -> run(batch));
+   }
+
+   private void run(Map<K, CompletableFuture<V>> batch)
+   {
+      CompletableFuture<Map<K, V>> values;
+      try
+      {
+         values = submit(batch);
+      }
+      catch (RuntimeException e)
+      {
+         // e.g. the executor was closed; there is no caller to throw to on the timer thread
+         values = new CompletableFuture<>();
+         values.completeExceptionally(e);
+      }
+
+      values.whenComplete((found, ex) -> {
+         batch.forEach((key, future) -> {
+            if (ex != null)
+            {
+               // do not cache failures
+               cache.remove(key, future);
+               future.completeExceptionally(ex);
+            }
+            else
+               future.complete(found.get(key));
+         });
+      });
+   }
+
+   private CompletableFuture<Map<K, V>> submit(Map<K, CompletableFuture<V>> batch)
+   {
+      return executor.submit(conn -> {
+         Array keys = conn.createArrayOf(keyType, batch.keySet().toArray());
+         try (PreparedStatement ps = conn.prepareStatement(sql))
+         {
+            ps.setArray(1, keys);
+            Map<K, V> values = new HashMap<>();
+            try (ResultSet rs = ps.executeQuery())
+            {
+               ResultSetMetaData meta = rs.getMetaData();
+               RowMapper<? extends K> rowKeys = keyMapper.forResult(meta);
+               RowMapper<? extends V> rowValues = valueMapper.forResult(meta);
+               while (rs.next())
+                  values.put(rowKeys.map(rs), rowValues.map(rs));
+            }
+            return values;
+         }
+         finally
+         {
+            keys.free();
+         }
+      });
+   }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker guarding a single data source.
+ * <p>
+ * While <b>closed</b>, every call is allowed and the outcome of the most recent calls is recorded. A call
+ * counts against the data source if no connection could be obtained, if it failed with a connection-level
+ * error (SQLState class {@code 08}, or an administrative shutdown), or if it took longer than the slow
+ * call threshold. Errors raised by the task itself, such as constraint violations, do not count. When
+ * the proportion of bad calls among the recent ones reaches the failure rate threshold the breaker
+ * <b>opens</b>.
+ * <p>
+ * While open, calls are rejected without touching the data source. After the open duration the breaker
+ * becomes <b>half-open</b> and admits a few trial calls; if all succeed it closes, and if any is bad it
+ * opens again.
+ * <p>
+ * Each call is made under a {@link Permit}, which records its outcome. An outcome is counted only in the
+ * state in which its permit was granted: a call admitted before the breaker opened, and still waiting on
+ * the data source when it becomes half-open, neither closes nor re-opens it.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @since 1.5
+ */
+public class CircuitBreaker
+{
+   private static final Logger debug = Logger.getLogger(CircuitBreaker.class.getName());
+
+   /** Number of recent calls considered when computing the failure rate. */
+   private static final int WINDOW = 20;
+   /** Fewest calls recorded before the breaker may open. */
+   private static final int MINIMUM_CALLS = 10;
+   /** Trial calls admitted while half-open. */
+   private static final int HALF_OPEN_CALLS = 3;
+
+   public enum State
+   {
+      CLOSED, OPEN, HALF_OPEN
+   }
+
+   private final double failureRateThreshold;
+   private final long slowCallNanos;
+   private final long openNanos;
+
+   // guarded by this
+   private State state = State.CLOSED;
+   private final boolean[] outcomes = new boolean[WINDOW];
+   private int recorded;
+   private int next;
+   private int bad;
+   private long openedAt;
+   private int trialsAdmitted;
+   private int trialsSucceeded;
+   /** Incremented on each change of state, so that permits granted in an earlier state are ignored. */
+   private long generation;
+
+   /**
+    * @param failureRateThreshold The proportion of bad calls, between 0 and 1, at which the breaker opens.
+    * @param slowCallThreshold The duration above which a call counts as bad; zero or negative to disable.
+    * @param openDuration How long the breaker stays open before admitting trial calls.
+    * @param unit The unit of {@code slowCallThreshold} and {@code openDuration}.
+    */
+   public CircuitBreaker(double failureRateThreshold, long slowCallThreshold, long openDuration, TimeUnit unit)
+   {
+      if (failureRateThreshold <= 0 || failureRateThreshold > 1)
+         throw new IllegalArgumentException("Failure rate threshold must be in (0, 1], but was " + failureRateThreshold);
+
+      this.failureRateThreshold = failureRateThreshold;
+      this.slowCallNanos = unit.toNanos(slowCallThreshold);
+      this.openNanos = unit.toNanos(openDuration);
+   }
+
+   public synchronized State getState()
+   {
+      return state;
+   }
+
+   /**
+    * @return {@code true} if calls would currently be rejected. Unlike {@link #tryAcquire()} this does
+    *         not admit a trial call; it is a cheap check for rejecting work before it is queued.
+    */
+   public synchronized boolean isRejecting()
+   {
+      if (state == State.OPEN)
+         return System.nanoTime() - openedAt < openNanos;
+      if (state == State.HALF_OPEN)
+         return trialsAdmitted >= HALF_OPEN_CALLS;
+      return false;
+   }
+
+   /**
+    * Request permission for a call. A caller that is granted permission must later call either
+    * {@link Permit#record(long, boolean)} or {@link Permit#releaseUnused()}.
+    *
+    * @return The permit for the call, or {@code null} if the call should be rejected.
+    */
+   public synchronized Permit tryAcquire()
+   {
+      if (state == State.OPEN)
+      {
+         if (System.nanoTime() - openedAt < openNanos)
+            return null;
+
+         debug.fine("Circuit breaker half-open");
+         transition(State.HALF_OPEN);
+         trialsAdmitted = 0;
+         trialsSucceeded = 0;
+      }
+
+      if (state == State.HALF_OPEN)
+      {
+         if (trialsAdmitted >= HALF_OPEN_CALLS)
+            return null;
+         trialsAdmitted++;
+      }
+
+      return new Permit(generation);
+   }
+
+   /**
+    * Permission for a single call, granted by {@link #tryAcquire()}. Only the first use of a permit has
+    * any effect.
+    */
+   public final class Permit
+   {
+      private final long granted;
+      // guarded by the breaker
+      private boolean used;
+
+      private Permit(long generation)
+      {
+         this.granted = generation;
+      }
+
+      /**
+       * Record the outcome of the permitted call.
+       *
+       * @param elapsedNanos The duration of the call.
+       * @param failed {@code true} if the data source failed, as opposed to the task.
+       */
+      public void record(long elapsedNanos, boolean failed)
+      {
+         CircuitBreaker.this.record(this, elapsedNanos, failed);
+      }
+
+      /**
+       * Return the permit for a call that was not made.
+       */
+      public void releaseUnused()
+      {
+         CircuitBreaker.this.releaseUnused(this);
+      }
+   }
+
+   private synchronized void releaseUnused(Permit permit)
+   {
+      if (permit.used)
+         return;
+      permit.used = true;
+
+      if (permit.granted == generation && state == State.HALF_OPEN && trialsAdmitted > 0)
+         trialsAdmitted--;
+   }
+
+   private synchronized void record(Permit permit, long elapsedNanos, boolean failed)
+   {
+      if (permit.used)
+         return;
+      permit.used = true;
+
+      // granted in an earlier state, e.g. before the breaker opened; its outcome no longer applies
+      if (permit.granted != generation)
+         return;
+
+      boolean isBad = failed || (slowCallNanos > 0 && elapsedNanos > slowCallNanos);
+      switch (state)
+      {
+         case HALF_OPEN:
+            if (isBad)
+               open();
+            else if (++trialsSucceeded >= HALF_OPEN_CALLS)
+               close();
+            break;
+
+         case CLOSED:
+            if (recorded == WINDOW && outcomes[next])
+               bad--;
+            outcomes[next] = isBad;
+            next = (next + 1) % WINDOW;
+            recorded = Math.min(recorded + 1, WINDOW);
+            if (isBad)
+               bad++;
+
+            if (recorded >= MINIMUM_CALLS && bad >= failureRateThreshold * recorded)
+               open();
+            break;
+
+         default:
+            // no permit is granted while open
+            break;
+      }
+   }
+
+   private void transition(State to)
+   {
+      state = to;
+      generation++;
+   }
+
+   private void open()
+   {
+      debug.warning("Circuit breaker opened; rejecting calls for " + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms");
+      transition(State.OPEN);
+      openedAt = System.nanoTime();
+   }
+
+   private void close()
+   {
+      debug.info("Circuit breaker closed");
+      transition(State.CLOSED);
+      recorded = 0;
+      next = 0;
+      bad = 0;
+   }
+
+   /**
+    * @return {@code true} if the error indicates that the data source, rather than the task, failed.
+    */
+   public static boolean isConnectionFailure(Throwable error)
+   {
+      for (Throwable t = error; t != null; t = t.getCause())
+      {
+         if (t instanceof SQLException)
+         {
+            String state = ((SQLException)t).getSQLState();
+            // 08: connection exception; 57P01-03: admin shutdown, crash shutdown, cannot connect now
+            if (state != null && (state.startsWith("08") || state.startsWith("57P")))
+               return true;
+         }
+      }
+      return false;
+   }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import edu.tamu.tcat.db.core.DataSourceException;
+
+/**
+ * Indicates that a task was rejected without being run because the {@link CircuitBreaker} of its data
+ * source is open.
+ *
+ * @since 1.5
+ */
+public class CircuitBreakerOpenException extends DataSourceException
+{
+   public CircuitBreakerOpenException(String message)
+   {
+      // thrown frequently while the breaker is open; the stack trace carries no information
+      super(message, null, false, false);
+   }
+}
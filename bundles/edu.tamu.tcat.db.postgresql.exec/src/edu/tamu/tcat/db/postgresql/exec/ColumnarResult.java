@@ -0,0 +1,643 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query result held column by column in primitive arrays, for analytic tasks that aggregate many rows.
+ * <p>
+ * Unlike a list of rows, reading a result this way does not box numbers: integer, boolean and temporal
+ * columns are held as {@code long}s (booleans as 0 or 1, timestamps and dates as epoch milliseconds),
+ * floating point and numeric columns as {@code double}s, and all other columns as dictionary-encoded
+ * strings. Each column tracks nulls in a bitmap. Numeric columns may optionally be held off-heap in
+ * direct buffers so that large results do not add to garbage collection.
+ * <p>
+ * {@link #read(ResultSet, boolean)} is intended to be called from within an
+ * {@link edu.tamu.tcat.db.exec.sql.SqlExecutor.ExecutorTask}. Set a fetch size on the statement so the
+ * driver streams rows rather than buffering the whole result.
+ *
+ * @since 1.5
+ */
+public class ColumnarResult
+{
+   private static final int INITIAL_CAPACITY = 1024;
+
+   private final List<Column> columns;
+   private final Map<String, Column> byName;
+   private final int rowCount;
+
+   private ColumnarResult(List<Column> columns, int rowCount)
+   {
+      this.columns = Collections.unmodifiableList(columns);
+      this.rowCount = rowCount;
+      Map<String, Column> names = new LinkedHashMap<>();
+      for (Column c : columns)
+         names.putIfAbsent(c.getName(), c);
+      this.byName = names;
+   }
+
+   /**
+    * Read all remaining rows of a result set. The result set is not closed.
+    *
+    * @param offHeap {@code true} to hold numeric columns in direct buffers.
+    */
+   public static ColumnarResult read(ResultSet rs, boolean offHeap) throws SQLException
+   {
+      ResultSetMetaData meta = rs.getMetaData();
+      int count = meta.getColumnCount();
+      Column[] cols = new Column[count];
+      for (int i = 0; i < count; i++)
+         cols[i] = createColumn(meta.getColumnLabel(i + 1), meta.getColumnType(i + 1), offHeap);
+
+      int rows = 0;
+      while (rs.next())
+      {
+         for (int i = 0; i < count; i++)
+            cols[i].read(rs, i + 1, rows);
+         rows++;
+      }
+
+      for (Column c : cols)
+         c.finish(rows);
+      return new ColumnarResult(new ArrayList<>(Arrays.asList(cols)), rows);
+   }
+
+   private static Column createColumn(String name, int sqlType, boolean offHeap)
+   {
+      switch (sqlType)
+      {
+         case Types.BIT:
+         case Types.BOOLEAN:
+            return new LongColumn(name, offHeap, LongColumn.BOOLEAN);
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER:
+         case Types.BIGINT:
+            return new LongColumn(name, offHeap, LongColumn.INTEGER);
+         case Types.DATE:
+         case Types.TIMESTAMP:
+         case Types.TIMESTAMP_WITH_TIMEZONE:
+            return new LongColumn(name, offHeap, LongColumn.TEMPORAL);
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            return new DoubleColumn(name, offHeap);
+         default:
+            return new StringColumn(name);
+      }
+   }
+
+   public int getRowCount()
+   {
+      return rowCount;
+   }
+
+   public List<Column> getColumns()
+   {
+      return columns;
+   }
+
+   /**
+    * @return The column with the given label, or the first such column if the label is repeated.
+    * @throws IllegalArgumentException If there is no such column.
+    */
+   public Column getColumn(String name)
+   {
+      Column c = byName.get(name);
+      if (c == null)
+         throw new IllegalArgumentException("No column [" + name + "] in result; columns are " + byName.keySet());
+      return c;
+   }
+
+   public LongColumn getLongColumn(String name)
+   {
+      return as(getColumn(name), LongColumn.class);
+   }
+
+   public DoubleColumn getDoubleColumn(String name)
+   {
+      return as(getColumn(name), DoubleColumn.class);
+   }
+
+   public StringColumn getStringColumn(String name)
+   {
+      return as(getColumn(name), StringColumn.class);
+   }
+
+   private static <C extends Column> C as(Column c, Class<C> type)
+   {
+      if (!type.isInstance(c))
+         throw new IllegalArgumentException("Column [" + c.getName() + "] is a " + c.getClass().getSimpleName() + ", not a " + type.getSimpleName());
+      return type.cast(c);
+   }
+
+   /**
+    * Sum a numeric column for each distinct value of a string column. Rows with a null key or value are
+    * skipped.
+    *
+    * @return The sum for each key, in order of first appearance.
+    */
+   public static Map<String, Double> sumBy(StringColumn keys, NumericColumn values)
+   {
+      checkSameSize(keys, values);
+      int[] codes = keys.codes;
+      double[] sums = new double[keys.getDictionarySize()];
+      boolean[] seen = new boolean[sums.length];
+      for (int row = 0; row < keys.size; row++)
+      {
+         int code = codes[row];
+         if (code < 0 || values.isNull(row))
+            continue;
+         sums[code] += values.getDouble(row);
+         seen[code] = true;
+      }
+
+      Map<String, Double> result = new LinkedHashMap<>();
+      for (int code = 0; code < sums.length; code++)
+      {
+         if (seen[code])
+            result.put(keys.dictionary.get(code), Double.valueOf(sums[code]));
+      }
+      return result;
+   }
+
+   /**
+    * Count the rows for each distinct non-null value of a string column.
+    *
+    * @return The count for each key, in order of first appearance.
+    */
+   public static Map<String, Integer> countBy(StringColumn keys)
+   {
+      int[] counts = new int[keys.getDictionarySize()];
+      for (int row = 0; row < keys.size; row++)
+      {
+         int code = keys.codes[row];
+         if (code >= 0)
+            counts[code]++;
+      }
+
+      Map<String, Integer> result = new LinkedHashMap<>();
+      for (int code = 0; code < counts.length; code++)
+         result.put(keys.dictionary.get(code), Integer.valueOf(counts[code]));
+      return result;
+   }
+
+   private static void checkSameSize(Column a, Column b)
+   {
+      if (a.size != b.size)
+         throw new IllegalArgumentException("Columns [" + a.getName() + "] and [" + b.getName() + "] are of different lengths");
+   }
+
+   /**
+    * A single column of a result.
+    */
+   public static abstract class Column
+   {
+      private final String name;
+      private long[] nulls = new long[INITIAL_CAPACITY / 64];
+      private boolean hasNulls;
+      int size;
+
+      Column(String name)
+      {
+         this.name = name;
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      public int size()
+      {
+         return size;
+      }
+
+      public boolean isNull(int row)
+      {
+         return hasNulls && (nulls[row >>> 6] & (1L << row)) != 0;
+      }
+
+      /**
+       * @return {@code true} if any value in this column is null.
+       */
+      public boolean hasNulls()
+      {
+         return hasNulls;
+      }
+
+      /**
+       * @return The value at the given row as an object, or {@code null}.
+       */
+      public abstract Object getObject(int row);
+
+      abstract void read(ResultSet rs, int index, int row) throws SQLException;
+
+      /**
+       * Set the final row count, covering every row with the null bitmap, which otherwise only grows as
+       * far as the last null.
+       */
+      void finish(int rows)
+      {
+         size = rows;
+         int words = (rows + 63) >>> 6;
+         if (words > nulls.length)
+            nulls = Arrays.copyOf(nulls, words);
+      }
+
+      void setNull(int row)
+      {
+         int word = row >>> 6;
+         if (word >= nulls.length)
+            nulls = Arrays.copyOf(nulls, Math.max(nulls.length * 2, word + 1));
+         nulls[word] |= 1L << row;
+         hasNulls = true;
+      }
+
+      static int grow(int capacity, int required)
+      {
+         return Math.max(capacity * 2, required);
+      }
+   }
+
+   /**
+    * A column whose values can be read as {@code double}s.
+    */
+   public static abstract class NumericColumn extends Column
+   {
+      NumericColumn(String name)
+      {
+         super(name);
+      }
+
+      public abstract double getDouble(int row);
+   }
+
+   /**
+    * A column of integer, boolean or temporal values held as {@code long}s.
+    */
+   public static final class LongColumn extends NumericColumn
+   {
+      static final int INTEGER = 0;
+      static final int BOOLEAN = 1;
+      static final int TEMPORAL = 2;
+
+      private final int kind;
+      private long[] values;
+      private ByteBuffer buffer;
+
+      LongColumn(String name, boolean offHeap, int kind)
+      {
+         super(name);
+         this.kind = kind;
+         if (offHeap)
+            buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY * Long.BYTES).order(ByteOrder.nativeOrder());
+         else
+            values = new long[INITIAL_CAPACITY];
+      }
+
+      /**
+       * @return The value at the given row; 0 if it is null.
+       */
+      public long get(int row)
+      {
+         return values != null ? values[row] : buffer.getLong(row * Long.BYTES);
+      }
+
+      @Override
+      public double getDouble(int row)
+      {
+         return get(row);
+      }
+
+      @Override
+      public Object getObject(int row)
+      {
+         if (isNull(row))
+            return null;
+         switch (kind)
+         {
+            case BOOLEAN:
+               return Boolean.valueOf(get(row) != 0);
+            case TEMPORAL:
+               return new Timestamp(get(row));
+            default:
+               return Long.valueOf(get(row));
+         }
+      }
+
+      /**
+       * @return The sum of non-null values.
+       */
+      public long sum()
+      {
+         long sum = 0;
+         if (values != null && !hasNulls())
+         {
+            for (int row = 0; row < size; row++)
+               sum += values[row];
+            return sum;
+         }
+
+         for (int row = 0; row < size; row++)
+         {
+            if (!isNull(row))
+               sum += get(row);
+         }
+         return sum;
+      }
+
+      /**
+       * @return The smallest non-null value, or {@link Long#MAX_VALUE} if there is none.
+       */
+      public long min()
+      {
+         long min = Long.MAX_VALUE;
+         for (int row = 0; row < size; row++)
+         {
+            if (!isNull(row))
+               min = Math.min(min, get(row));
+         }
+         return min;
+      }
+
+      /**
+       * @return The largest non-null value, or {@link Long#MIN_VALUE} if there is none.
+       */
+      public long max()
+      {
+         long max = Long.MIN_VALUE;
+         for (int row = 0; row < size; row++)
+         {
+            if (!isNull(row))
+               max = Math.max(max, get(row));
+         }
+         return max;
+      }
+
+      @Override
+      void read(ResultSet rs, int index, int row) throws SQLException
+      {
+         long v;
+         boolean isNull;
+         switch (kind)
+         {
+            case BOOLEAN:
+               v = rs.getBoolean(index) ? 1 : 0;
+               isNull = rs.wasNull();
+               break;
+            case TEMPORAL:
+               Timestamp ts = rs.getTimestamp(index);
+               isNull = ts == null;
+               v = isNull ? 0 : ts.getTime();
+               break;
+            default:
+               v = rs.getLong(index);
+               isNull = rs.wasNull();
+               break;
+         }
+
+         if (isNull)
+            setNull(row);
+         set(row, v);
+      }
+
+      private void set(int row, long v)
+      {
+         if (values != null)
+         {
+            if (row >= values.length)
+               values = Arrays.copyOf(values, grow(values.length, row + 1));
+            values[row] = v;
+            return;
+         }
+
+         int offset = row * Long.BYTES;
+         if (offset >= buffer.capacity())
+            buffer = copy(buffer, grow(buffer.capacity(), offset + Long.BYTES));
+         buffer.putLong(offset, v);
+      }
+   }
+
+   /**
+    * A column of floating point or numeric values held as {@code double}s. Numeric values beyond the
+    * precision of a {@code double} are rounded.
+    */
+   public static final class DoubleColumn extends NumericColumn
+   {
+      private double[] values;
+      private ByteBuffer buffer;
+
+      DoubleColumn(String name, boolean offHeap)
+      {
+         super(name);
+         if (offHeap)
+            buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY * Double.BYTES).order(ByteOrder.nativeOrder());
+         else
+            values = new double[INITIAL_CAPACITY];
+      }
+
+      /**
+       * @return The value at the given row; 0 if it is null.
+       */
+      public double get(int row)
+      {
+         return values != null ? values[row] : buffer.getDouble(row * Double.BYTES);
+      }
+
+      @Override
+      public double getDouble(int row)
+      {
+         return get(row);
+      }
+
+      @Override
+      public Object getObject(int row)
+      {
+         return isNull(row) ? null : Double.valueOf(get(row));
+      }
+
+      /**
+       * @return The sum of non-null values.
+       */
+      public double sum()
+      {
+         double sum = 0;
+         if (values != null && !hasNulls())
+         {
+            for (int row = 0; row < size; row++)
+               sum += values[row];
+            return sum;
+         }
+
+         for (int row = 0; row < size; row++)
+         {
+            if (!isNull(row))
+               sum += get(row);
+         }
+         return sum;
+      }
+
+      /**
+       * @return The smallest non-null value, or {@code NaN} if there is none.
+       */
+      public double min()
+      {
+         double min = Double.NaN;
+         for (int row = 0; row < size; row++)
+         {
+            if (!isNull(row))
+               min = Double.isNaN(min) ? get(row) : Math.min(min, get(row));
+         }
+         return min;
+      }
+
+      /**
+       * @return The largest non-null value, or {@code NaN} if there is none.
+       */
+      public double max()
+      {
+         double max = Double.NaN;
+         for (int row = 0; row < size; row++)
+         {
+            if (!isNull(row))
+               max = Double.isNaN(max) ? get(row) : Math.max(max, get(row));
+         }
+         return max;
+      }
+
+      @Override
+      void read(ResultSet rs, int index, int row) throws SQLException
+      {
+         double v = rs.getDouble(index);
+         if (rs.wasNull())
+            setNull(row);
+
+         if (values != null)
+         {
+            if (row >= values.length)
+               values = Arrays.copyOf(values, grow(values.length, row + 1));
+            values[row] = v;
+            return;
+         }
+
+         int offset = row * Double.BYTES;
+         if (offset >= buffer.capacity())
+            buffer = copy(buffer, grow(buffer.capacity(), offset + Double.BYTES));
+         buffer.putDouble(offset, v);
+      }
+   }
+
+   /**
+    * A column of strings, dictionary encoded: each distinct value is stored once and rows hold an
+    * {@code int} code for their value.
+    */
+   public static final class StringColumn extends Column
+   {
+      private int[] codes = new int[INITIAL_CAPACITY];
+      private final List<String> dictionary = new ArrayList<>();
+      private final Map<String, Integer> lookup = new HashMap<>();
+
+      StringColumn(String name)
+      {
+         super(name);
+      }
+
+      public String get(int row)
+      {
+         int code = codes[row];
+         return code < 0 ? null : dictionary.get(code);
+      }
+
+      @Override
+      public Object getObject(int row)
+      {
+         return get(row);
+      }
+
+      /**
+       * @return The dictionary code of the value at the given row, or -1 if it is null. Codes are
+       *         assigned from 0 in order of first appearance.
+       */
+      public int getCode(int row)
+      {
+         return codes[row];
+      }
+
+      public int getDictionarySize()
+      {
+         return dictionary.size();
+      }
+
+      /**
+       * @return The distinct values of this column, indexed by code.
+       */
+      public List<String> getDictionary()
+      {
+         return Collections.unmodifiableList(dictionary);
+      }
+
+      @Override
+      void read(ResultSet rs, int index, int row) throws SQLException
+      {
+         if (row >= codes.length)
+            codes = Arrays.copyOf(codes, grow(codes.length, row + 1));
+
+         String v = rs.getString(index);
+         if (v == null)
+         {
+            setNull(row);
+            codes[row] = -1;
+            return;
+         }
+
+         Integer code = lookup.get(v);
+         if (code == null)
+         {
+            code = Integer.valueOf(dictionary.size());
+            dictionary.add(v);
+            lookup.put(v, code);
+         }
+         codes[row] = code.intValue();
+      }
+   }
+
+   private static ByteBuffer copy(ByteBuffer source, int capacity)
+   {
+      ByteBuffer target = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+      ByteBuffer src = source.duplicate();
+      src.clear();
+      target.put(src);
+      target.clear();
+      return target;
+   }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A consistent-hash ring mapping keys to nodes. Each node is placed on the ring at a number of virtual
+ * positions so that keys are spread evenly, and adding or removing a node only moves the keys that
+ * fall in the ranges it gains or loses (about {@code 1/n} of all keys).
+ * <p>
+ * Routing does not lock; changes to the ring copy it.
+ *
+ * @param <N> The type of node.
+ * @since 1.5
+ */
+public class ConsistentHashRing<N>
+{
+   private final int virtualNodes;
+   private volatile NavigableMap<Long, Placement<N>> ring = new TreeMap<>();
+
+   /**
+    * @param virtualNodes The number of positions on the ring for each node; a few hundred gives an
+    *        even spread for small numbers of nodes.
+    */
+   public ConsistentHashRing(int virtualNodes)
+   {
+      if (virtualNodes < 1)
+         throw new IllegalArgumentException("At least one virtual node is required");
+      this.virtualNodes = virtualNodes;
+   }
+
+   /**
+    * Add a node, or replace the node with the same id.
+    *
+    * @param id A stable identifier for the node; determines its positions on the ring.
+    */
+   public synchronized void add(String id, N node)
+   {
+      NavigableMap<Long, Placement<N>> updated = new TreeMap<>(ring);
+      updated.values().removeIf(p -> p.id.equals(id));
+      Placement<N> placement = new Placement<>(id, node);
+      for (int i = 0; i < virtualNodes; i++)
+      {
+         long position = hash(id + "#" + i);
+         // on the (unlikely) event of a collision, the first node placed keeps the position
+         updated.putIfAbsent(Long.valueOf(position), placement);
+      }
+      ring = updated;
+   }
+
+   /**
+    * Remove a node.
+    *
+    * @return The node removed, or {@code null} if there was none with the given id.
+    */
+   public synchronized N remove(String id)
+   {
+      NavigableMap<Long, Placement<N>> updated = new TreeMap<>(ring);
+      N removed = null;
+      for (Placement<N> p : updated.values())
+      {
+         if (p.id.equals(id))
+         {
+            removed = p.node;
+            break;
+         }
+      }
+      updated.values().removeIf(p -> p.id.equals(id));
+      ring = updated;
+      return removed;
+   }
+
+   /**
+    * @return The node responsible for the given key, or {@code null} if the ring is empty.
+    */
+   public N route(Object key)
+   {
+      NavigableMap<Long, Placement<N>> current = ring;
+      if (current.isEmpty())
+         return null;
+
+      Map.Entry<Long, Placement<N>> entry = current.ceilingEntry(Long.valueOf(hash(String.valueOf(key))));
+      if (entry == null)
+         entry = current.firstEntry();
+      return entry.getValue().node;
+   }
+
+   public boolean isEmpty()
+   {
+      return ring.isEmpty();
+   }
+
+   /**
+    * 64-bit FNV-1a over the UTF-8 bytes, followed by a finalizer to spread similar inputs (e.g.
+    * sequential ids) across the ring.
+    */
+   static long hash(String value)
+   {
+      long h = 0xcbf29ce484222325L;
+      for (byte b : value.getBytes(StandardCharsets.UTF_8))
+      {
+         h ^= b & 0xff;
+         h *= 0x100000001b3L;
+      }
+
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+   private static final class Placement<N>
+   {
+      private final String id;
+      private final N node;
+
+      Placement(String id, N node)
+      {
+         this.id = id;
+         this.node = node;
+      }
+   }
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A task queue that shares the threads of an executor fairly among the callers submitting to it, so that
+ * a burst of tasks from one caller delays the tasks of others little.
+ * <p>
+ * Queued tasks are grouped by a key identifying their caller; {@link PostgreSqlExecutor} uses the tenant
+ * id. Each key is charged the time its tasks take to execute, divided by its weight, and the next task
+ * taken is the first of the key charged least so far (start-time fair queuing, a form of weighted fair
+ * queuing). Over a busy period, each key with queued tasks therefore receives a share of execution time
+ * proportional to its weight, whatever the number or cost of its tasks. A key that becomes busy after a
+ * quiet period starts level with the keys already queued, rather than being credited for the time it
+ * was idle.
+ * <p>
+ * A key may also be limited to a number of tasks in flight; its further tasks wait even if threads are
+ * free, leaving those threads to other keys.
+ * <p>
+ * Within a key, tasks are taken in submission order or, when used by {@link PostgreSqlExecutor}, in order
+ * of deadline.
+ * <p>
+ * Tasks are charged an estimate of their cost, based on recent tasks of the same key, when they are
+ * taken, and the estimate is corrected by the measured time when they complete. The measured time
+ * includes waiting for a connection.
+ * <p>
+ * Instances are intended for use with {@link PostgreSqlExecutor#init(edu.tamu.tcat.db.provider.DataSourceProvider, int, FairTaskQueue)}
+ * and may be retained to adjust weights and limits while in use.
+ *
+ * @since 1.5
+ */
+public class FairTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable>
+{
+   /** Weight given to each new measurement in the moving average of task cost. */
+   private static final double COST_SMOOTHING = 0.2;
+   /** Cost assumed for tasks of a key before any have been measured. */
+   private static final double INITIAL_COST_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition available = lock.newCondition();
+
+   private final int defaultMaxInFlight;
+   private final Map<Object, Integer> weights = new HashMap<>();
+   private final Map<Object, Integer> maxInFlight = new HashMap<>();
+
+   private final Map<Object, Lane> lanes = new HashMap<>();
+   /** Lanes with queued tasks, in the order they became busy. */
+   private final List<Lane> backlogged = new ArrayList<>();
+   /**
+    * Idle lanes charged ahead of virtual time, by charge. They are kept so that a key cannot regain its
+    * share by going idle, and forgotten once virtual time has caught up with them.
+    */
+   private final PriorityQueue<IdleLane> idle = new PriorityQueue<>(Comparator.comparingDouble(i -> i.charge));
+   /** The charge of the most recently taken task's key; keys becoming busy start here. */
+   private double virtualTime;
+   private double averageCost = INITIAL_COST_NANOS;
+   private int size;
+
+   private volatile Function<? super Runnable, ?> keyFunction = r -> null;
+   private volatile Comparator<? super Runnable> ordering;
+
+   /**
+    * Create a queue in which keys have weight 1 and no limit on tasks in flight unless configured
+    * otherwise.
+    */
+   public FairTaskQueue()
+   {
+      this(Integer.MAX_VALUE);
+   }
+
+   /**
+    * @param defaultMaxInFlight The number of tasks of any one key that may be in flight at once, unless
+    *        configured otherwise for that key.
+    */
+   public FairTaskQueue(int defaultMaxInFlight)
+   {
+      if (defaultMaxInFlight < 1)
+         throw new IllegalArgumentException("In-flight limit must be at least 1, but was " + defaultMaxInFlight);
+
+      this.defaultMaxInFlight = defaultMaxInFlight;
+   }
+
+   /**
+    * Set the relative share of execution time given to a key.
+    *
+    * @param key The key, e.g. a tenant id; may be {@code null} for tasks without one.
+    * @param weight A positive weight; keys have weight 1 by default.
+    */
+   public void setWeight(Object key, int weight)
+   {
+      if (weight < 1)
+         throw new IllegalArgumentException("Weight must be at least 1, but was " + weight);
+
+      lock.lock();
+      try
+      {
+         weights.put(key, Integer.valueOf(weight));
+         Lane lane = lanes.get(key);
+         if (lane != null)
+            lane.weight = weight;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Limit the number of tasks of a key that may be in flight at once.
+    *
+    * @param key The key, e.g. a tenant id; may be {@code null} for tasks without one.
+    * @param max The limit, at least 1.
+    */
+   public void setMaxInFlight(Object key, int max)
+   {
+      if (max < 1)
+         throw new IllegalArgumentException("In-flight limit must be at least 1, but was " + max);
+
+      lock.lock();
+      try
+      {
+         maxInFlight.put(key, Integer.valueOf(max));
+         Lane lane = lanes.get(key);
+         if (lane != null)
+            lane.maxInFlight = max;
+         available.signalAll();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Set how the key of a queued task is determined. Tasks whose key is {@code null} share one key.
+    */
+   void setKeyFunction(Function<? super Runnable, ?> keyFunction)
+   {
+      this.keyFunction = keyFunction;
+   }
+
+   /**
+    * Set the order in which the queued tasks of each key are taken, in place of submission order. Must
+    * be set before any task is queued.
+    */
+   void setOrdering(Comparator<? super Runnable> ordering)
+   {
+      this.ordering = ordering;
+   }
+
+   @Override
+   public boolean offer(Runnable task)
+   {
+      Objects.requireNonNull(task);
+      Object key = keyFunction.apply(task);
+
+      lock.lock();
+      try
+      {
+         Lane lane = lanes.get(key);
+         if (lane == null)
+         {
+            lane = new Lane(key);
+            lanes.put(key, lane);
+         }
+
+         if (lane.tasks.isEmpty())
+         {
+            lane.charge = Math.max(lane.charge, virtualTime);
+            backlogged.add(lane);
+         }
+         lane.tasks.add(task);
+         size++;
+         available.signal();
+         return true;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public void put(Runnable task)
+   {
+      offer(task);
+   }
+
+   @Override
+   public boolean offer(Runnable task, long timeout, TimeUnit unit)
+   {
+      return offer(task);
+   }
+
+   @Override
+   public Runnable poll()
+   {
+      lock.lock();
+      try
+      {
+         return next();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public Runnable take() throws InterruptedException
+   {
+      lock.lockInterruptibly();
+      try
+      {
+         Runnable task;
+         while ((task = next()) == null)
+            available.await();
+         return task;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException
+   {
+      long nanos = unit.toNanos(timeout);
+      lock.lockInterruptibly();
+      try
+      {
+         Runnable task;
+         while ((task = next()) == null)
+         {
+            if (nanos <= 0)
+               return null;
+            nanos = available.awaitNanos(nanos);
+         }
+         return task;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public Runnable peek()
+   {
+      lock.lock();
+      try
+      {
+         Lane lane = select();
+         return lane == null ? null : lane.tasks.peek();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public boolean remove(Object task)
+   {
+      lock.lock();
+      try
+      {
+         for (Lane lane : backlogged)
+         {
+            if (lane.tasks.remove(task))
+            {
+               size--;
+               if (lane.tasks.isEmpty())
+               {
+                  backlogged.remove(lane);
+                  retireIfIdle(lane);
+               }
+               return true;
+            }
+         }
+         return false;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int size()
+   {
+      lock.lock();
+      try
+      {
+         return size;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   @Override
+   public int remainingCapacity()
+   {
+      return Integer.MAX_VALUE;
+   }
+
+   /**
+    * Remove all queued tasks, regardless of fairness or limits, e.g. when the executor is shut down.
+    */
+   @Override
+   public int drainTo(Collection<? super Runnable> target)
+   {
+      return drainTo(target, Integer.MAX_VALUE);
+   }
+
+   @Override
+   public int drainTo(Collection<? super Runnable> target, int maxElements)
+   {
+      lock.lock();
+      try
+      {
+         int drained = 0;
+         Iterator<Lane> it = backlogged.iterator();
+         while (it.hasNext() && drained < maxElements)
+         {
+            Lane lane = it.next();
+            while (!lane.tasks.isEmpty() && drained < maxElements)
+            {
+               target.add(lane.tasks.poll());
+               drained++;
+            }
+            if (lane.tasks.isEmpty())
+               it.remove();
+         }
+         size -= drained;
+         return drained;
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return A snapshot of the queued tasks.
+    */
+   @Override
+   public Iterator<Runnable> iterator()
+   {
+      List<Runnable> tasks = new ArrayList<>();
+      lock.lock();
+      try
+      {
+         for (Lane lane : backlogged)
+            tasks.addAll(lane.tasks);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+
+      Iterator<Runnable> it = tasks.iterator();
+      return new Iterator<Runnable>()
+      {
+         private Runnable last;
+
+         @Override
+         public boolean hasNext()
+         {
+            return it.hasNext();
+         }
+
+         @Override
+         public Runnable next()
+         {
+            last = it.next();
+            return last;
+         }
+
+         @Override
+         public void remove()
+         {
+            if (last == null)
+               throw new IllegalStateException();
+            FairTaskQueue.this.remove(last);
+            last = null;
+         }
+      };
+   }
+
+   /**
+    * @return The busy lane charged least that is below its in-flight limit, if any. Called with the lock held.
+    */
+   private Lane select()
+   {
+      Lane best = null;
+      for (Lane lane : backlogged)
+      {
+         if (lane.inFlight < lane.maxInFlight && (best == null || lane.charge < best.charge))
+            best = lane;
+      }
+      return best;
+   }
+
+   /**
+    * Take the next task, charging its key. Called with the lock held.
+    */
+   private Runnable next()
+   {
+      Lane lane = select();
+      if (lane == null)
+         return null;
+
+      Runnable task = lane.tasks.poll();
+      size--;
+      if (lane.tasks.isEmpty())
+         backlogged.remove(lane);
+
+      if (lane.charge > virtualTime)
+      {
+         virtualTime = lane.charge;
+         forgetIdle();
+      }
+      double estimate = Double.isNaN(lane.cost) ? averageCost : lane.cost;
+      lane.charge += estimate / lane.weight;
+      lane.inFlight++;
+      return new Dispatched(lane, task, estimate);
+   }
+
+   private void completed(Lane lane, double estimate, long elapsed)
+   {
+      lock.lock();
+      try
+      {
+         lane.inFlight--;
+         lane.charge += (elapsed - estimate) / lane.weight;
+         lane.cost = Double.isNaN(lane.cost) ? elapsed : lane.cost + COST_SMOOTHING * (elapsed - lane.cost);
+         averageCost += COST_SMOOTHING * (elapsed - averageCost);
+
+         retireIfIdle(lane);
+         available.signal();
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Forget a lane that has just become idle if it has not used more than its share, or otherwise
+    * remember it until virtual time catches up with it. Called with the lock held.
+    */
+   private void retireIfIdle(Lane lane)
+   {
+      if (lane.inFlight > 0 || !lane.tasks.isEmpty())
+         return;
+
+      // the key may have a new lane already, if this one was forgotten and its entry was stale
+      if (lane.charge <= virtualTime)
+         lanes.remove(lane.key, lane);
+      else if (!lane.idleQueued)
+      {
+         lane.idleQueued = true;
+         idle.add(new IdleLane(lane));
+      }
+   }
+
+   /**
+    * Forget the idle lanes that virtual time has caught up with. Called with the lock held.
+    */
+   private void forgetIdle()
+   {
+      while (!idle.isEmpty() && idle.peek().charge <= virtualTime)
+      {
+         Lane lane = idle.poll().lane;
+         lane.idleQueued = false;
+         // a lane busy since it went idle is queued again, at its new charge, when next idle
+         retireIfIdle(lane);
+      }
+   }
+
+   /**
+    * The queued tasks and accounting of one key.
+    */
+   private class Lane
+   {
+      private final Object key;
+      private final Queue<Runnable> tasks = ordering == null ? new ArrayDeque<>() : new PriorityQueue<>(11, ordering);
+      private int weight;
+      private int maxInFlight;
+      private int inFlight;
+      /** Execution time charged to this key, divided by its weight. */
+      private double charge;
+      /** Moving average of the execution time of this key's tasks, or NaN if none have completed. */
+      private double cost = Double.NaN;
+      /** Whether this lane has an entry in {@link FairTaskQueue#idle}. */
+      private boolean idleQueued;
+
+      Lane(Object key)
+      {
+         this.key = key;
+         this.weight = weights.getOrDefault(key, Integer.valueOf(1)).intValue();
+         this.maxInFlight = FairTaskQueue.this.maxInFlight.getOrDefault(key, Integer.valueOf(defaultMaxInFlight)).intValue();
+      }
+   }
+
+   /**
+    * An idle lane with the charge it had when it went idle, which its entry is ordered by.
+    */
+   private static class IdleLane
+   {
+      private final Lane lane;
+      private final double charge;
+
+      IdleLane(Lane lane)
+      {
+         this.lane = lane;
+         this.charge = lane.charge;
+      }
+   }
+
+   /**
+    * A task taken from the queue, which reports its execution time on completion.
+    */
+   private class Dispatched implements Runnable
+   {
+      private final Lane lane;
+      private final Runnable task;
+      private final double estimate;
+
+      Dispatched(Lane lane, Runnable task, double estimate)
+      {
+         this.lane = lane;
+         this.task = task;
+         this.estimate = estimate;
+      }
+
+      @Override
+      public void run()
+      {
+         long start = System.nanoTime();
+         try
+         {
+            task.run();
+         }
+         finally
+         {
+            completed(lane, estimate, System.nanoTime() - start);
+         }
+      }
+   }
+}
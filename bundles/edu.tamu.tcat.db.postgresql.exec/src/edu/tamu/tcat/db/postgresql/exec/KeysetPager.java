@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import edu.tamu.tcat.db.exec.sql.SqlExecutor;
+
+/**
+ * Scans the rows of a query in pages using keyset pagination rather than {@code OFFSET}.
+ * <p>
+ * Each page after the first selects only rows whose key is greater than the last key of the previous
+ * page, i.e. {@code WHERE (k1, k2) > (?, ?) ORDER BY k1, k2 LIMIT n}, so with an index on the key
+ * every page costs the same no matter how deep the scan is. The key columns must be unique together
+ * and are scanned in ascending order.
+ * <p>
+ * Every page is fetched by its own short task on the executor, so no transaction or connection is held
+ * while the caller processes rows. Rows changed between pages may consequently be missed or seen in
+ * their new state. With {@link #setPrefetch(boolean) prefetch} enabled, the next page is requested as
+ * soon as the current one arrives.
+ * <p>
+ * The base query is wrapped as a sub-query; PostgreSQL applies the key condition to the underlying
+ * table as long as the base query can be flattened (e.g. it has no {@code LIMIT}, {@code DISTINCT} or
+ * aggregates).
+ *
+ * @param <T> The type of object produced for each row.
+ * @since 1.5
+ */
+public class KeysetPager<T> implements Iterable<T>
+{
+   private static final Pattern COLUMN = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*|\"([^\"]|\"\")+\"");
+
+   private final SqlExecutor executor;
+   private final String query;
+   private final List<String> keyColumns;
+   private final RowMapper<T> mapper;
+   private final int pageSize;
+
+   private Object[] parameters = new Object[0];
+   private boolean prefetch;
+
+   /**
+    * @param executor The executor on which pages are fetched.
+    * @param query The base query; must not be ordered or limited.
+    * @param keyColumns The names, in the output of the base query, of the columns that uniquely and
+    *        stably order its rows. Names are used as SQL identifiers and may be double-quoted.
+    * @param mapper Maps each row.
+    * @param pageSize The number of rows per page.
+    */
+   public KeysetPager(SqlExecutor executor, String query, List<String> keyColumns, RowMapper<T> mapper, int pageSize)
+   {
+      if (keyColumns.isEmpty())
+         throw new IllegalArgumentException("At least one key column is required");
+      for (String column : keyColumns)
+      {
+         if (!COLUMN.matcher(column).matches())
+            throw new IllegalArgumentException("Invalid key column name [" + column + "]");
+      }
+      if (pageSize < 1)
+         throw new IllegalArgumentException("Page size must be at least 1, but was " + pageSize);
+
+      this.executor = executor;
+      this.query = query;
+      this.keyColumns = Collections.unmodifiableList(new ArrayList<>(keyColumns));
+      this.mapper = mapper;
+      this.pageSize = pageSize;
+   }
+
+   /**
+    * @param params Values for the parameters of the base query, in order.
+    */
+   public KeysetPager<T> setParameters(Object... params)
+   {
+      this.parameters = params.clone();
+      return this;
+   }
+
+   /**
+    * @param prefetch {@code true} to request each page as soon as the previous one arrives, so that it
+    *        is fetched while the previous one is processed.
+    */
+   public KeysetPager<T> setPrefetch(boolean prefetch)
+   {
+      this.prefetch = prefetch;
+      return this;
+   }
+
+   /**
+    * Start a scan from the first row. The scan fetches pages only as it advances; an
+    * {@link IllegalStateException} is thrown if a page cannot be fetched.
+    */
+   @Override
+   public Iterator<T> iterator()
+   {
+      return new PageIterator();
+   }
+
+   @Override
+   public Spliterator<T> spliterator()
+   {
+      return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED);
+   }
+
+   /**
+    * @return A sequential stream over a new scan.
+    */
+   public Stream<T> stream()
+   {
+      return StreamSupport.stream(spliterator(), false);
+   }
+
+   private CompletableFuture<Page<T>> fetch(Object[] after)
+   {
+      String sql = buildQuery(after != null);
+      return executor.submit(conn -> {
+         try (PreparedStatement ps = conn.prepareStatement(sql))
+         {
+            int ix = 1;
+            for (Object p : parameters)
+               ps.setObject(ix++, p);
+            if (after != null)
+            {
+               for (Object k : after)
+                  ps.setObject(ix++, k);
+            }
+
+            List<T> rows = new ArrayList<>(pageSize);
+            Object[] lastKey = null;
+            try (ResultSet rs = ps.executeQuery())
+            {
+               RowMapper<T> rowMapper = mapper.forResult(rs.getMetaData());
+               while (rs.next())
+               {
+                  rows.add(rowMapper.map(rs));
+                  lastKey = new Object[keyColumns.size()];
+                  for (int i = 0; i < lastKey.length; i++)
+                     lastKey[i] = rs.getObject(unquote(keyColumns.get(i)));
+               }
+            }
+            return new Page<>(rows, rows.size() < pageSize ? null : lastKey);
+         }
+      });
+   }
+
+   private String buildQuery(boolean after)
+   {
+      String keys = String.join(", ", keyColumns);
+      StringBuilder sql = new StringBuilder();
+      sql.append("SELECT * FROM (").append(query).append(") AS keyset_page");
+      if (after)
+      {
+         sql.append(" WHERE (").append(keys).append(") > (");
+         for (int i = 0; i < keyColumns.size(); i++)
+            sql.append(i == 0 ? "?" : ", ?");
+         sql.append(")");
+      }
+      sql.append(" ORDER BY ").append(keys).append(" LIMIT ").append(pageSize);
+      return sql.toString();
+   }
+
+   private static String unquote(String column)
+   {
+      if (column.startsWith("\""))
+         return column.substring(1, column.length() - 1).replace("\"\"", "\"");
+      return column;
+   }
+
+   private static final class Page<T>
+   {
+      private final List<T> rows;
+      /** The key of the last row, or {@code null} if this is the last page. */
+      private final Object[] lastKey;
+
+      Page(List<T> rows, Object[] lastKey)
+      {
+         this.rows = rows;
+         this.lastKey = lastKey;
+      }
+   }
+
+   private class PageIterator implements Iterator<T>
+   {
+      private Iterator<T> current = Collections.emptyIterator();
+      /** The next page, if it has been requested. */
+      private CompletableFuture<Page<T>> next;
+      /** The key of the last row received; {@code null} before the first page. */
+      private Object[] after;
+      private boolean exhausted;
+
+      @Override
+      public boolean hasNext()
+      {
+         while (!current.hasNext())
+         {
+            if (exhausted)
+               return false;
+            if (next == null)
+               next = fetch(after);
+            receive();
+         }
+         return true;
+      }
+
+      @Override
+      public T next()
+      {
+         if (!hasNext())
+            throw new NoSuchElementException();
+         return current.next();
+      }
+
+      private void receive()
+      {
+         Page<T> page;
+         try
+         {
+            page = next.join();
+         }
+         catch (CompletionException e)
+         {
+            exhausted = true;
+            throw new IllegalStateException("Failed to fetch page of [" + query + "]", e.getCause());
+         }
+         finally
+         {
+            next = null;
+         }
+
+         current = page.rows.iterator();
+         if (page.lastKey == null)
+            exhausted = true;
+         else
+         {
+            after = page.lastKey;
+            if (prefetch)
+               next = fetch(after);
+         }
+      }
+   }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A priority task queue whose blocking takes first obtain a permit from an
+ * {@link AdaptiveConcurrencyLimit}, so that tasks wait in the queue, in priority order, rather than on
+ * threads that have already taken them.
+ * <p>
+ * Each task returned by {@link #take()} or {@link #poll(long, TimeUnit)} holds a permit that the task
+ * must return. {@link #poll()} and {@link #drainTo(Collection)} take no permit and are intended only for
+ * draining the queue, as on executor shutdown.
+ */
+class LimitedTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable>
+{
+   private final PriorityBlockingQueue<Runnable> delegate;
+   private final AdaptiveConcurrencyLimit limit;
+
+   LimitedTaskQueue(Comparator<Runnable> ordering, AdaptiveConcurrencyLimit limit)
+   {
+      this.delegate = new PriorityBlockingQueue<>(11, ordering);
+      this.limit = limit;
+   }
+
+   @Override
+   public boolean offer(Runnable task)
+   {
+      return delegate.offer(task);
+   }
+
+   @Override
+   public void put(Runnable task)
+   {
+      delegate.put(task);
+   }
+
+   @Override
+   public boolean offer(Runnable task, long timeout, TimeUnit unit)
+   {
+      return delegate.offer(task, timeout, unit);
+   }
+
+   @Override
+   public Runnable take() throws InterruptedException
+   {
+      while (true)
+      {
+         limit.awaitAvailable(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         Runnable task = delegate.take();
+         if (limit.tryAcquire())
+            return task;
+
+         // another thread took the last permit meanwhile; requeued in its place by priority
+         delegate.offer(task);
+      }
+   }
+
+   @Override
+   public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException
+   {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (true)
+      {
+         if (!limit.awaitAvailable(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+            return null;
+         Runnable task = delegate.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+         if (task == null)
+            return null;
+         if (limit.tryAcquire())
+            return task;
+
+         delegate.offer(task);
+      }
+   }
+
+   @Override
+   public Runnable poll()
+   {
+      return delegate.poll();
+   }
+
+   @Override
+   public Runnable peek()
+   {
+      return delegate.peek();
+   }
+
+   @Override
+   public boolean remove(Object task)
+   {
+      return delegate.remove(task);
+   }
+
+   @Override
+   public int size()
+   {
+      return delegate.size();
+   }
+
+   @Override
+   public int remainingCapacity()
+   {
+      return delegate.remainingCapacity();
+   }
+
+   @Override
+   public int drainTo(Collection<? super Runnable> target)
+   {
+      return delegate.drainTo(target);
+   }
+
+   @Override
+   public int drainTo(Collection<? super Runnable> target, int maxElements)
+   {
+      return delegate.drainTo(target, maxElements);
+   }
+
+   @Override
+   public Iterator<Runnable> iterator()
+   {
+      return delegate.iterator();
+   }
+}
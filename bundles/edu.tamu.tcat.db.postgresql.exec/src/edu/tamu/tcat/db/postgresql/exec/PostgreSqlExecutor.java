@@ -16,29 +16,120 @@
 package edu.tamu.tcat.db.postgresql.exec;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
+import org.postgresql.PGConnection;
+
 import edu.tamu.tcat.db.core.DataSourceException;
 import edu.tamu.tcat.db.exec.sql.SqlExecutor;
 import edu.tamu.tcat.db.provider.DataSourceProvider;
 
 /**
  * This executor implementation has lifecycle, and should be {@link #close()}d when the application determines its lifecycle is complete.
+ * <p>
+ * Tasks submitted from within a task already running on this executor are not queued. They are run inline on
+ * the calling thread using the {@link Connection} already borrowed by the outer task, wrapped in a
+ * {@link Savepoint}. A failed nested task rolls back to its savepoint only; a successful nested task is
+ * committed (or rolled back) together with the outer task's transaction.
+ * <p>
+ * When initialized with {@link #initAsync(DataSourceProvider, Integer)}, tasks submitted before the data
+ * source is ready are queued and dispatched, in submission order, once it becomes available.
+ * <p>
+ * Tasks may be submitted on behalf of a tenant whose data lives in its own schema (see
+ * {@link #submit(String, SqlExecutor.ExecutorTask)}). The executor sets the {@code search_path} of the
+ * task's transaction to the tenant schema with {@code SET LOCAL}, so that it reverts when the transaction
+ * ends and never outlives the task on a pooled connection that other code may borrow next. Tasks
+ * submitted without a tenant run with the server default search path. Tasks must not change the search
+ * path themselves.
+ * <p>
+ * A {@link CircuitBreaker} may be set to stop sending tasks to a data source that is failing or
+ * unresponsive, e.g. during a database failover. While it is open, tasks complete immediately with a
+ * {@link CircuitBreakerOpenException} rather than waiting on the pool for a connection.
+ * <p>
+ * A group of tasks may be run in parallel against one consistent view of the database with
+ * {@link #submitSnapshot(List)}.
+ * <p>
+ * Identical read tasks submitted concurrently may be collapsed into one execution with
+ * {@link #submitShared(Object, SqlExecutor.ExecutorTask)}.
+ * <p>
+ * Tasks are given an {@link SqlExecutor.ExecutionContext} that supports
+ * {@link SqlExecutor.ExecutionContext#fork(SqlExecutor.ExecutorTask) forking} sub-tasks. A forked sub-task
+ * runs on another thread and connection, in its own transaction, if one is free; if its parent joins it
+ * before it has started, it runs inline on the parent's connection, as a nested task would.
+ * <p>
+ * By default, queued tasks run in submission order. Initialized with a {@link FairTaskQueue}, the
+ * executor instead shares its threads fairly among tenants, optionally weighted and with a limit on each
+ * tenant's tasks in flight.
+ * <p>
+ * Tasks may be submitted with a deadline (see {@link #submit(String, SqlExecutor.ExecutorTask, Instant)}).
+ * Queued tasks run in order of deadline, where tasks without one are due 30 seconds after they are
+ * submitted, so that they yield to more urgent deadlines without being starved by a steady stream of
+ * them; a task whose deadline has passed before it is given a connection is dropped, and a running
+ * task's statements are limited to the time remaining with {@code SET LOCAL statement_timeout}.
+ * <p>
+ * The data source may be replaced while tasks are running with {@link #rebind(DataSourceProvider)}.
  */
 public class PostgreSqlExecutor implements SqlExecutor, AutoCloseable
 {
    private static final Logger debug = Logger.getLogger(PostgreSqlExecutor.class.getName());
 
    private ExecutorService executor;
-   private DataSource dataSource;
+   /** The data source new tasks run against. */
+   private volatile Binding binding;
+   /** The number of calls to {@link #rebind}, and the number of the one whose data source is bound; guarded by pending. */
+   private long rebinds;
+   private long boundRebind;
+   private AdaptiveConcurrencyLimit concurrencyLimit;
+   private volatile CircuitBreaker circuitBreaker;
+   private StatementBatcher batcher;
+
+   /** Shared read tasks that are queued or running, by identity key. */
+   private final ConcurrentHashMap<Object, CompletableFuture<?>> sharedTasks = new ConcurrentHashMap<>();
+
+   /** How long after submission a task without a deadline is due. */
+   private static final long UNTIMED_SLACK_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+   /** Orders queued tasks by when they are due, then by submission. */
+   private static final Comparator<Runnable> DUE_ORDER = (a, b) -> {
+      ExecutionTaskRunner<?> x = (ExecutionTaskRunner<?>)a;
+      ExecutionTaskRunner<?> y = (ExecutionTaskRunner<?>)b;
+      // nanoTime values are compared by difference, since they may overflow
+      int cmp = Long.compare(x.due - y.due, 0);
+      return cmp != 0 ? cmp : Long.compare(x.sequence, y.sequence);
+   };
+   private final AtomicLong submissions = new AtomicLong();
+
+   /** Set once the data source is available; until then, submitted tasks are held in {@link #pending}. */
+   private volatile boolean ready;
+   private Throwable initFailure;
+   private final List<ExecutionTaskRunner<?>> pending = new ArrayList<>();
+
+   /** The task running on the current thread, if that thread belongs to this executor. */
+   private final ThreadLocal<ExecutionTaskRunner<?>> activeTask = new ThreadLocal<>();
 
    /**
     * Initialize this executor with a single thread for SQL task execution.
@@ -56,16 +147,173 @@ public class PostgreSqlExecutor implements SqlExecutor, AutoCloseable
     * @since 1.2
     */
    public void init(DataSourceProvider dsp, Integer numThreads) throws DataSourceException
+   {
+      binding = new Binding(getDataSource(dsp));
+      createExecutor(numThreads);
+      ready = true;
+   }
+
+   /**
+    * Initialize this executor with a fixed number of threads that take tasks from a {@link FairTaskQueue},
+    * so that the threads are shared fairly among tenants. Tasks are keyed by the tenant id they were
+    * submitted with (see {@link #submit(String, SqlExecutor.ExecutorTask)}); tasks without a tenant share
+    * one key.
+    *
+    * @param numThreads The number of threads, at least 1.
+    * @param queue The queue to use; may be retained by the caller to adjust weights and limits.
+    * @since 1.5
+    */
+   public void init(DataSourceProvider dsp, int numThreads, FairTaskQueue queue) throws DataSourceException
+   {
+      if (numThreads < 1)
+         throw new IllegalArgumentException("Thread count must be at least 1, but was " + numThreads);
+
+      binding = new Binding(getDataSource(dsp));
+      queue.setKeyFunction(r -> r instanceof ExecutionTaskRunner ? ((ExecutionTaskRunner<?>)r).tenantId : null);
+      queue.setOrdering(DUE_ORDER);
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS, queue);
+      // started up front so that every task passes through the queue rather than directly to a new thread
+      pool.prestartAllCoreThreads();
+      executor = pool;
+      ready = true;
+   }
+
+   private static DataSource getDataSource(DataSourceProvider dsp) throws DataSourceException
    {
       try
       {
-         dataSource = dsp.getDataSource();
+         return dsp.getDataSource();
       }
       catch (SQLException e)
       {
          throw new DataSourceException("Failed to access data source", e);
       }
+   }
+
+   /**
+    * Initialize this executor without waiting for the data source to become available. Tasks may be
+    * submitted immediately; they are queued until the data source is ready. If the data source cannot be
+    * initialized, queued and subsequently submitted tasks complete exceptionally.
+    *
+    * @param numThreads As for {@link #init(DataSourceProvider, Integer)}
+    * @return A future that completes when the data source is ready, or exceptionally if it could not be
+    *         initialized.
+    * @since 1.5
+    */
+   public CompletableFuture<Void> initAsync(DataSourceProvider dsp, Integer numThreads)
+   {
+      createExecutor(numThreads);
+      return dsp.getDataSourceAsync().handle((ds, ex) -> {
+         onDataSourceReady(ds, ex);
+         if (ex != null)
+            throw new IllegalStateException("Failed to access data source", ex);
+         return null;
+      });
+   }
+
+   private void onDataSourceReady(DataSource ds, Throwable failure)
+   {
+      List<ExecutionTaskRunner<?>> queued;
+      synchronized (pending)
+      {
+         // a data source bound by rebind() in the meantime takes precedence
+         if (binding != null)
+            return;
 
+         if (failure == null)
+            binding = new Binding(ds);
+         initFailure = failure;
+         ready = true;
+         queued = new ArrayList<>(pending);
+         pending.clear();
+      }
+
+      for (ExecutionTaskRunner<?> runner : queued)
+         dispatch(runner);
+   }
+
+   /**
+    * Replace the data source tasks run against, e.g. after credentials are rotated or the database
+    * fails over, without interrupting service. Tasks that start once the new data source is ready use
+    * it; tasks already running, and any snapshot groups in progress, finish on the old one. If this
+    * executor failed to initialize, a successful rebind also recovers it, and tasks queued while waiting
+    * for a data source run against the new one.
+    * <p>
+    * If several rebinds overlap, the data source of the latest one is kept.
+    *
+    * @param dsp The provider of the new data source.
+    * @return A future that completes once no task uses the old data source any longer, so that it may be
+    *         closed, or exceptionally if the new data source could not be obtained, in which case the old
+    *         one remains in use.
+    * @throws IllegalStateException If this executor has not been initialized.
+    * @since 1.5
+    */
+   public CompletableFuture<Void> rebind(DataSourceProvider dsp)
+   {
+      if (executor == null)
+         throw new IllegalStateException("Executor is not initialized");
+
+      long id;
+      synchronized (pending)
+      {
+         id = ++rebinds;
+      }
+
+      return dsp.getDataSourceAsync().thenCompose(ds -> {
+         Binding replaced = install(ds, id);
+         if (replaced == null)
+            return CompletableFuture.completedFuture(null);
+
+         replaced.retire();
+         return replaced.drained;
+      });
+   }
+
+   /**
+    * @return The binding replaced, if any.
+    */
+   private Binding install(DataSource ds, long id)
+   {
+      Binding replaced;
+      List<ExecutionTaskRunner<?>> queued;
+      synchronized (pending)
+      {
+         // superseded by a later rebind that completed first
+         if (id < boundRebind)
+            return null;
+
+         boundRebind = id;
+         replaced = binding;
+         binding = new Binding(ds);
+         initFailure = null;
+         ready = true;
+         queued = new ArrayList<>(pending);
+         pending.clear();
+      }
+
+      for (ExecutionTaskRunner<?> runner : queued)
+         dispatch(runner);
+      return replaced;
+   }
+
+   /**
+    * Take a reference to the current binding, to be released once the caller's connection is closed.
+    */
+   private Binding acquireBinding()
+   {
+      while (true)
+      {
+         Binding bound = binding;
+         bound.active.incrementAndGet();
+         // re-checked so that a binding is never used once it may have been found drained
+         if (binding == bound)
+            return bound;
+         bound.release();
+      }
+   }
+
+   private void createExecutor(Integer numThreads)
+   {
       //TODO: should a watchdog thread be added to kill tasks that take too long?
 
       // NOTE: https://jdbc.postgresql.org/documentation/94/thread.html
@@ -75,15 +323,97 @@ public class PostgreSqlExecutor implements SqlExecutor, AutoCloseable
       //       single-threaded depending on the connection pooling mechanism used.
       if (numThreads == null)
          this.executor = Executors.newCachedThreadPool();
-      else if (numThreads.intValue() <= 1)
-         this.executor = Executors.newSingleThreadExecutor();
       else
-         this.executor = Executors.newFixedThreadPool(numThreads.intValue());
+      {
+         // as Executors.newFixedThreadPool, but taking queued tasks in order of deadline
+         int n = Math.max(1, numThreads.intValue());
+         this.executor = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(11, DUE_ORDER));
+      }
+   }
+
+   /**
+    * Initialize this executor with an adaptive limit on the number of concurrently executing tasks. A
+    * thread is available for each of up to {@link AdaptiveConcurrencyLimit#getMaxLimit()} tasks, but
+    * threads only take a task from the queue while the number in flight is below the limit's current
+    * value, which adjusts according to observed task latency. Tasks beyond the limit therefore wait in
+    * the queue, in order of deadline.
+    *
+    * @param limit The limit to apply; may be retained by the caller to monitor the current limit.
+    * @since 1.5
+    */
+   public void init(DataSourceProvider dsp, AdaptiveConcurrencyLimit limit) throws DataSourceException
+   {
+      binding = new Binding(getDataSource(dsp));
+      this.concurrencyLimit = limit;
+      int n = limit.getMaxLimit();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new LimitedTaskQueue(DUE_ORDER, limit));
+      // started up front so that every task passes through the queue, and so takes a permit there
+      pool.prestartAllCoreThreads();
+      executor = pool;
+      ready = true;
+   }
+
+   /**
+    * @return The adaptive concurrency limit in use, or {@code null} if this executor uses a fixed
+    *         number of threads.
+    * @since 1.5
+    */
+   public AdaptiveConcurrencyLimit getConcurrencyLimit()
+   {
+      return concurrencyLimit;
+   }
+
+   /**
+    * Guard the data source with a circuit breaker, or remove the breaker if {@code null}. Applies to tasks
+    * that start running after this call.
+    *
+    * @since 1.5
+    */
+   public void setCircuitBreaker(CircuitBreaker breaker)
+   {
+      this.circuitBreaker = breaker;
+   }
+
+   /**
+    * @return The circuit breaker guarding the data source, or {@code null} if there is none.
+    * @since 1.5
+    */
+   public CircuitBreaker getCircuitBreaker()
+   {
+      return circuitBreaker;
+   }
+
+   /**
+    * Batch single-row writes of the same statement with those of other callers; see
+    * {@link StatementBatcher}. Batches hold up to 100 parameter sets and wait at most 5ms for others to
+    * join. The returned future must not be awaited from within a task of this executor.
+    *
+    * @param sql The statement.
+    * @param params The values of the statement's parameters, in order.
+    * @return A future for the update count of this parameter set.
+    * @since 1.5
+    */
+   public CompletableFuture<Integer> submitBatched(String sql, Object... params)
+   {
+      StatementBatcher b;
+      synchronized (this)
+      {
+         if (batcher == null)
+            batcher = new StatementBatcher(this, 100, 5, TimeUnit.MILLISECONDS);
+         b = batcher;
+      }
+      return b.submit(sql, params);
    }
 
    @Override
    public void close()
    {
+      synchronized (this)
+      {
+         if (batcher != null)
+            batcher.close();
+      }
+
       if (executor != null)
       {
          boolean terminated = false;
@@ -107,37 +437,510 @@ public class PostgreSqlExecutor implements SqlExecutor, AutoCloseable
 
    @Override
    public <T> CompletableFuture<T> submit(SqlExecutor.ExecutorTask<T> task)
+   {
+      return submit(null, task);
+   }
+
+   /**
+    * Submit a task to run against the schema of the given tenant. The {@code search_path} of the
+    * connection used is set to the tenant's schema for the duration of the task's transaction.
+    * <p>
+    * A task submitted from within another task of this executor runs inline with the outer task's
+    * search path; it fails if it names a different tenant.
+    *
+    * @param tenantId The name of the tenant's schema, or {@code null} to use the server default search path.
+    * @since 1.5
+    */
+   public <T> CompletableFuture<T> submit(String tenantId, SqlExecutor.ExecutorTask<T> task)
+   {
+      return submit(tenantId, task, null);
+   }
+
+   /**
+    * Submit a task that is only wanted until the given time.
+    *
+    * @see #submit(String, SqlExecutor.ExecutorTask, Instant)
+    * @since 1.5
+    */
+   public <T> CompletableFuture<T> submit(SqlExecutor.ExecutorTask<T> task, Instant deadline)
+   {
+      return submit(null, task, deadline);
+   }
+
+   /**
+    * Submit a task for a tenant that is only wanted until the given time.
+    * <p>
+    * The task is queued ahead of tasks with later deadlines and of tasks without a deadline submitted
+    * after its deadline. If the deadline passes before the task is given a connection, the task is not
+    * run and its future fails with a {@link TimeoutException}. Otherwise, the task's transaction sets
+    * {@code statement_timeout} to the time remaining, so that the server cancels any statement still
+    * running at the deadline. Sub-tasks forked by the task share its deadline.
+    * <p>
+    * A task submitted from within another task of this executor runs inline under the outer task's
+    * deadline, if any; it fails if its own deadline has already passed.
+    *
+    * @param tenantId As for {@link #submit(String, SqlExecutor.ExecutorTask)}.
+    * @param deadline The time after which the result is no longer wanted, or {@code null} for none.
+    * @since 1.5
+    */
+   public <T> CompletableFuture<T> submit(String tenantId, SqlExecutor.ExecutorTask<T> task, Instant deadline)
    {
       CompletableFuture<T> result = new CompletableFuture<>();
-      executor.execute(new ExecutionTaskRunner<>(task, result));
+      ExecutionTaskRunner<?> outer = activeTask.get();
+      if (outer == null)
+      {
+         CircuitBreaker breaker = circuitBreaker;
+         if (breaker != null && breaker.isRejecting())
+            result.completeExceptionally(new CircuitBreakerOpenException("Data source circuit breaker is open"));
+         else if (deadline == null)
+            dispatch(new ExecutionTaskRunner<>(task, result, tenantId));
+         else
+            dispatch(new ExecutionTaskRunner<>(task, result, tenantId, null, true, toNanoTime(deadline)));
+      }
+      else if (tenantId != null && !tenantId.equals(outer.tenantId))
+         result.completeExceptionally(new IllegalStateException("Cannot run a task for tenant [" + tenantId
+               + "] within a task for tenant [" + outer.tenantId + "]"));
+      else if (deadline != null && !deadline.isAfter(Instant.now()))
+         result.completeExceptionally(new TimeoutException("Task deadline " + deadline + " passed before it could run"));
+      else
+         executeNested(outer, task, result);
+      return result;
+   }
+
+   /**
+    * Convert a wall-clock time to the equivalent {@link System#nanoTime()} value, saturating at about
+    * 100 years away, which keeps the difference of any two such values from overflowing.
+    */
+   private static long toNanoTime(Instant instant)
+   {
+      long max = TimeUnit.DAYS.toNanos(36500);
+      Duration remaining = Duration.between(Instant.now(), instant);
+      long nanos;
+      if (remaining.getSeconds() >= TimeUnit.NANOSECONDS.toSeconds(max))
+         nanos = max;
+      else if (remaining.getSeconds() <= -TimeUnit.NANOSECONDS.toSeconds(max))
+         nanos = -max;
+      else
+         nanos = remaining.toNanos();
+      return System.nanoTime() + nanos;
+   }
+
+   /**
+    * Run several tasks in parallel, each on its own connection, all seeing the same snapshot of the
+    * database, e.g. to export the partitions of a large table consistently.
+    * <p>
+    * A leader connection opens a {@code REPEATABLE READ} transaction and exports its snapshot with
+    * {@code pg_export_snapshot()}. Each task then runs in a {@code REPEATABLE READ} transaction that
+    * imports the snapshot with {@code SET TRANSACTION SNAPSHOT} before the task starts. The leader
+    * transaction stays open, without occupying a thread of this executor, until every task has completed.
+    * The connection pool must therefore allow at least two connections. Tasks should only read, since
+    * their snapshot does not include writes made by the other tasks.
+    *
+    * @return A future for the results of the tasks, in order. It fails with the first failure of any
+    *         task once all have completed.
+    * @since 1.5
+    */
+   public <T> CompletableFuture<List<T>> submitSnapshot(List<? extends SqlExecutor.ExecutorTask<T>> tasks)
+   {
+      CompletableFuture<List<T>> result = new CompletableFuture<>();
+      // dispatched rather than run inline even if submitted from a task, since it needs its own connections
+      dispatch(new SnapshotLeader<>(new ArrayList<>(tasks), result));
       return result;
    }
 
-   private class ExecutionTaskRunner<T> implements Runnable
+   /**
+    * Submit a read task that may be shared with identical tasks submitted at the same time. If a task
+    * with an equal key is already queued or running, this task is not run; the returned future completes
+    * with the result of the existing one. Once a shared task completes, the next submission with its key
+    * runs again.
+    * <p>
+    * The key must identify everything that determines the task's result, e.g. a list of the SQL text and
+    * its parameter values; tasks with equal keys must return the same type. Shared results are seen by
+    * several callers, so they should be immutable. Cancelling the returned future does not cancel the
+    * shared task.
+    * <p>
+    * A task submitted from within another task of this executor is never shared, since it runs inline
+    * in the outer task's transaction.
+    *
+    * @param key The identity of the task's result.
+    * @since 1.5
+    */
+   @SuppressWarnings("unchecked")
+   public <T> CompletableFuture<T> submitShared(Object key, SqlExecutor.ExecutorTask<T> task)
+   {
+      if (activeTask.get() != null)
+         return submit(task);
+
+      CompletableFuture<T> shared = new CompletableFuture<>();
+      CompletableFuture<?> existing = sharedTasks.putIfAbsent(key, shared);
+      if (existing != null)
+         return ((CompletableFuture<T>)existing).thenApply(result -> result);
+
+      submit(task).whenComplete((result, ex) -> {
+         // removed first so that callers arriving after completion run the task again
+         sharedTasks.remove(key, shared);
+         if (ex != null)
+            shared.completeExceptionally(ex);
+         else
+            shared.complete(result);
+      });
+
+      // a separate stage per caller, so that one caller's cancellation does not affect the others
+      return shared.thenApply(result -> result);
+   }
+
+   private void dispatch(ExecutionTaskRunner<?> runner)
+   {
+      if (!ready)
+      {
+         synchronized (pending)
+         {
+            if (!ready)
+            {
+               pending.add(runner);
+               return;
+            }
+         }
+      }
+
+      if (initFailure != null)
+         runner.future.completeExceptionally(new DataSourceException("Failed to access data source", initFailure));
+      else
+         executor.execute(runner);
+   }
+
+   /**
+    * Run a task submitted from a task of this executor inline on the outer task's connection. This avoids
+    * deadlocking a saturated (e.g. single-threaded) executor and avoids a second connection checkout.
+    */
+   private <T> void executeNested(ExecutionTaskRunner<?> outer, SqlExecutor.ExecutorTask<T> task, CompletableFuture<T> future)
+   {
+      Connection conn = outer.conn;
+      Savepoint savepoint;
+      try
+      {
+         savepoint = conn.setSavepoint();
+      }
+      catch (Exception ex)
+      {
+         future.completeExceptionally(ex);
+         return;
+      }
+
+      try
+      {
+         T result = task.execute(conn, outer);
+         conn.releaseSavepoint(savepoint);
+         future.complete(result);
+      }
+      catch (Exception ex)
+      {
+         try  {
+            conn.rollback(savepoint);
+         } catch (Exception e) {
+            ex.addSuppressed(e);
+         }
+
+         future.completeExceptionally(ex);
+      }
+   }
+
+   private class ExecutionTaskRunner<T> implements Runnable, SqlExecutor.ExecutionContext
    {
       private final SqlExecutor.ExecutorTask<T> task;
       private final CompletableFuture<T> future;
+      private final String tenantId;
+
+      /** The connection in use while this task executes. */
+      private Connection conn;
+      /** The connection on which the task's own code is running, if any; guarded by {@code this}. */
+      private Connection executing;
+      /** Whether a connection was obtained only to be returned unused, because {@link #claim()} failed. */
+      private boolean abandoned;
+      /** The error with which this task failed, if any. */
+      private Throwable failure;
+      /** The exported snapshot to run this task in, if any. */
+      private final String snapshot;
+      /** The binding to use instead of the current one, e.g. that of a snapshot leader. */
+      private Binding pinned;
+      /** Sub-tasks forked by this task; only accessed by the thread running it. */
+      private List<ForkedRunner<?>> forks;
+
+      /** Whether this task has a deadline. */
+      private final boolean timed;
+      /** The {@link System#nanoTime()} after which this task is no longer wanted, if {@link #timed}. */
+      private final long deadline;
+      /** The {@link System#nanoTime()} by which this task should start: its deadline, or a while after its submission. */
+      private final long due;
+      private final long sequence = submissions.getAndIncrement();
+
+      ExecutionTaskRunner(SqlExecutor.ExecutorTask<T> task, CompletableFuture<T> future, String tenantId)
+      {
+         this(task, future, tenantId, null);
+      }
 
-      ExecutionTaskRunner(SqlExecutor.ExecutorTask<T> task, CompletableFuture<T> future)
+      ExecutionTaskRunner(SqlExecutor.ExecutorTask<T> task, CompletableFuture<T> future, String tenantId, String snapshot)
+      {
+         this(task, future, tenantId, snapshot, false, 0);
+      }
+
+      ExecutionTaskRunner(SqlExecutor.ExecutorTask<T> task, CompletableFuture<T> future, String tenantId, String snapshot, boolean timed, long deadline)
       {
          this.task = task;
          this.future = future;
+         this.tenantId = tenantId;
+         this.snapshot = snapshot;
+         this.timed = timed;
+         this.deadline = deadline;
+         this.due = timed ? deadline : System.nanoTime() + UNTIMED_SLACK_NANOS;
+      }
+
+      private boolean isExpired()
+      {
+         return timed && deadline - System.nanoTime() <= 0;
+      }
+
+      private void expire()
+      {
+         fail(new TimeoutException("Task deadline passed before it could run"));
+      }
+
+      private void fail(Throwable error)
+      {
+         if (claim())
+            future.completeExceptionally(error);
+      }
+
+      /**
+       * Called by the thread running this task before it completes the task or starts executing it.
+       *
+       * @return {@code false} if the task has been taken over elsewhere, in which case this thread must
+       *         neither execute nor complete it.
+       */
+      boolean claim()
+      {
+         return true;
+      }
+
+      /**
+       * Cancel the statement in progress, if the task is executing.
+       */
+      synchronized void cancelStatement()
+      {
+         if (executing == null)
+            return;
+
+         try
+         {
+            if (executing.isWrapperFor(PGConnection.class))
+               executing.unwrap(PGConnection.class).cancelQuery();
+         }
+         catch (Exception e)
+         {
+            debug.log(Level.FINE, "Failed cancelling statement of cancelled task", e);
+         }
+      }
+
+      @Override
+      public boolean isCancelled()
+      {
+         return future.isCancelled();
+      }
+
+      @Override
+      public Connection getConnection()
+      {
+         return conn;
+      }
+
+      @Override
+      public <X> SqlExecutor.Subtask<X> fork(SqlExecutor.ExecutorTask<X> subtask)
+      {
+         ForkedRunner<X> fork = new ForkedRunner<>(subtask, tenantId, timed, deadline);
+         if (forks == null)
+            forks = new ArrayList<>();
+         forks.add(fork);
+         dispatch(fork);
+         return fork;
+      }
+
+      /**
+       * End the scope of this task's sub-tasks: cancel all of them if the task failed, or those that have
+       * not started otherwise, then wait for those still running to finish, so that none outlives the task.
+       */
+      private void endForks(boolean failed)
+      {
+         if (forks == null)
+            return;
+
+         for (ForkedRunner<?> fork : forks)
+         {
+            if (failed)
+               fork.cancel();
+            else
+               fork.cancelIfNotStarted();
+         }
+
+         // a running fork already holds its connection, so it can finish without anything this task holds
+         for (ForkedRunner<?> fork : forks)
+            fork.finished.join();
+         forks = null;
+      }
+
+      /**
+       * Return the concurrency permit this task took from the queue, if any, without recording an outcome.
+       */
+      void releaseUnusedPermit()
+      {
+         if (concurrencyLimit != null)
+            concurrencyLimit.releaseUnused();
       }
 
       @Override
       public void run()
       {
-         try (Connection conn = dataSource.getConnection())
+         // if limited, this task already holds a permit, taken as it left the queue
+         AdaptiveConcurrencyLimit limit = concurrencyLimit;
+         if (isExpired())
+         {
+            releaseUnusedPermit();
+            expire();
+            return;
+         }
+
+         // checked again here: the breaker may have opened while this task was queued
+         CircuitBreaker breaker = circuitBreaker;
+         CircuitBreaker.Permit call = breaker == null ? null : breaker.tryAcquire();
+         if (breaker != null && call == null)
+         {
+            releaseUnusedPermit();
+            fail(new CircuitBreakerOpenException("Data source circuit breaker is open"));
+            return;
+         }
+
+         if (limit == null && call == null)
+         {
+            execute();
+            return;
+         }
+
+         long start = System.nanoTime();
+         boolean connected = false;
+         try
+         {
+            connected = execute();
+         }
+         finally
+         {
+            long elapsed = System.nanoTime() - start;
+            if (abandoned)
+            {
+               if (limit != null)
+                  limit.releaseUnused();
+               if (call != null)
+                  call.releaseUnused();
+            }
+            else
+            {
+               if (limit != null)
+                  limit.release(elapsed, !connected);
+               if (call != null)
+                  call.record(elapsed, !connected || CircuitBreaker.isConnectionFailure(failure));
+            }
+         }
+      }
+
+      /**
+       * Set the search path of the current transaction to a tenant's schema. The setting reverts when the
+       * transaction ends, so the connection is returned to the pool with its default search path.
+       */
+      private void setSearchPath(Connection conn, String schema) throws SQLException
+      {
+         try (Statement stmt = conn.createStatement())
          {
+            stmt.execute("SET LOCAL search_path TO \"" + schema.replace("\"", "\"\"") + "\"");
+         }
+      }
+
+      /**
+       * Limit the statements of the current transaction to the time remaining before the deadline. The
+       * setting reverts when the transaction ends.
+       */
+      private void limitStatementTime(Connection conn) throws SQLException, TimeoutException
+      {
+         long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+         if (remaining <= 0)
+            throw new TimeoutException("Task deadline passed before it could run");
+
+         try (Statement stmt = conn.createStatement())
+         {
+            stmt.execute("SET LOCAL statement_timeout = " + remaining);
+         }
+      }
+
+      /**
+       * @return {@code false} if a connection could not be obtained from the data source.
+       */
+      private boolean execute()
+      {
+         boolean connected = false;
+         boolean claimed = false;
+         T result = null;
+         Exception error = null;
+         Binding bound = pinned != null ? pinned.retain() : acquireBinding();
+         try (Connection conn = bound.dataSource.getConnection())
+         {
+            connected = true;
+            if (!claim())
+            {
+               abandoned = true;
+               return true;
+            }
+            claimed = true;
+
             if (future.isCancelled())
                throw new InterruptedException();
 
+            this.conn = conn;
+            int isolation = -1;
             try
             {
                conn.setAutoCommit(false);
-               T result = task.execute(conn);
+               if (snapshot != null)
+               {
+                  isolation = conn.getTransactionIsolation();
+                  importSnapshot(conn, snapshot);
+               }
+               if (timed)
+                  limitStatementTime(conn);
+               if (tenantId != null)
+                  setSearchPath(conn, tenantId);
+
+               synchronized (this)
+               {
+                  executing = conn;
+               }
+               activeTask.set(this);
+               boolean failed = true;
+               try
+               {
+                  result = task.execute(conn, this);
+                  failed = false;
+               }
+               finally
+               {
+                  synchronized (this)
+                  {
+                     executing = null;
+                  }
+                  activeTask.remove();
+                  endForks(failed || future.isCancelled());
+               }
+
+               // roll back rather than commit the work of a task cancelled while it ran
+               if (future.isCancelled())
+                  throw new CancellationException("Task was cancelled");
                conn.commit();
-               future.complete(result);
             }
             catch (Exception ex)
             {
@@ -147,13 +950,338 @@ public class PostgreSqlExecutor implements SqlExecutor, AutoCloseable
                   ex.addSuppressed(e);
                }
 
-               future.completeExceptionally(ex);
+               error = ex;
+            }
+            finally
+            {
+               this.conn = null;
+               if (isolation >= 0)
+                  restoreIsolation(conn, isolation);
             }
          }
          catch (Exception ex) {
             // TODO add better messaging.
-            future.completeExceptionally(ex);
+            error = ex;
+         }
+         finally
+         {
+            bound.release();
+         }
+
+         // failed before it was claimed: another thread may have taken over the task
+         if (!claimed && !claim())
+            return connected;
+
+         // complete only once the connection is released and the task no longer owns this thread, so
+         // that dependent stages submitting to this executor are dispatched rather than run inline
+         if (error == null)
+            future.complete(result);
+         else
+         {
+            failure = error;
+            future.completeExceptionally(error);
+         }
+         return connected;
+      }
+   }
+
+   /**
+    * Holds the transaction whose snapshot is shared by a group of tasks, from before the tasks are
+    * dispatched until after all have completed.
+    */
+   private class SnapshotLeader<T> extends ExecutionTaskRunner<List<T>>
+   {
+      private final List<? extends SqlExecutor.ExecutorTask<T>> tasks;
+      private final CompletableFuture<List<T>> result;
+      /** Held until the leader connection is closed, so that the tasks use the same data source. */
+      private Binding bound;
+
+      SnapshotLeader(List<? extends SqlExecutor.ExecutorTask<T>> tasks, CompletableFuture<List<T>> result)
+      {
+         super(null, result, null);
+         this.tasks = tasks;
+         this.result = result;
+      }
+
+      @Override
+      public void run()
+      {
+         // the leader's connection is not counted against the limit: the tasks it leads each need a permit
+         releaseUnusedPermit();
+
+         Connection leader = null;
+         int isolation = -1;
+         String snapshot;
+         bound = acquireBinding();
+         try
+         {
+            leader = bound.dataSource.getConnection();
+            isolation = leader.getTransactionIsolation();
+            leader.setAutoCommit(false);
+            leader.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try (Statement stmt = leader.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()"))
+            {
+               rs.next();
+               snapshot = rs.getString(1);
+            }
+         }
+         catch (Exception ex)
+         {
+            if (leader != null)
+               releaseLeader(leader, isolation);
+            else
+               bound.release();
+            result.completeExceptionally(ex);
+            return;
+         }
+
+         List<CompletableFuture<T>> results = new ArrayList<>(tasks.size());
+         for (SqlExecutor.ExecutorTask<T> task : tasks)
+         {
+            CompletableFuture<T> taskResult = new CompletableFuture<>();
+            results.add(taskResult);
+            ExecutionTaskRunner<T> runner = new ExecutionTaskRunner<>(task, taskResult, null, snapshot);
+            runner.pinned = bound;
+            dispatch(runner);
+         }
+
+         Connection held = leader;
+         int heldIsolation = isolation;
+         CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).whenComplete((ignored, ex) -> {
+            releaseLeader(held, heldIsolation);
+            if (ex != null)
+               result.completeExceptionally(ex.getCause() != null ? ex.getCause() : ex);
+            else
+            {
+               List<T> values = new ArrayList<>(results.size());
+               for (CompletableFuture<T> r : results)
+                  values.add(r.join());
+               result.complete(values);
+            }
+         });
+      }
+
+      private void releaseLeader(Connection leader, int isolation)
+      {
+         try
+         {
+            leader.rollback();
+         }
+         catch (Exception e)
+         {
+            debug.log(Level.FINE, "Failed ending snapshot leader transaction", e);
+         }
+
+         if (isolation >= 0)
+            restoreIsolation(leader, isolation);
+
+         try
+         {
+            leader.close();
+         }
+         catch (Exception e)
+         {
+            debug.log(Level.WARNING, "Failed closing snapshot leader connection", e);
+         }
+         bound.release();
+      }
+   }
+
+   /**
+    * A sub-task forked by a running task. It runs once, either on a thread of this executor or, if its
+    * parent joins it before that thread has obtained a connection, inline on the parent's connection.
+    * <p>
+    * A worker claims the fork only once it holds a connection (and permit, if limited), so that a parent
+    * joining it never waits on resources that the parent itself may be holding.
+    */
+   private class ForkedRunner<X> extends ExecutionTaskRunner<X> implements SqlExecutor.Subtask<X>
+   {
+      private static final int QUEUED = 0;
+      /** A worker has taken the fork but has not yet connected; it can still be stolen or cancelled. */
+      private static final int STARTING = 1;
+      /** A worker has connected and owns the fork. */
+      private static final int RUNNING = 2;
+      /** The parent took the fork to run inline. */
+      private static final int STOLEN = 3;
+      private static final int CANCELLED = 4;
+
+      private final SqlExecutor.ExecutorTask<X> subtask;
+      private final CompletableFuture<X> result;
+      private final AtomicInteger state = new AtomicInteger(QUEUED);
+      /** Completed once no thread other than the parent's will touch the database for this fork. */
+      final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+      ForkedRunner(SqlExecutor.ExecutorTask<X> subtask, String tenantId, boolean timed, long deadline)
+      {
+         this(subtask, new CompletableFuture<>(), tenantId, timed, deadline);
+      }
+
+      private ForkedRunner(SqlExecutor.ExecutorTask<X> subtask, CompletableFuture<X> result, String tenantId, boolean timed, long deadline)
+      {
+         super(subtask, result, tenantId, null, timed, deadline);
+         this.subtask = subtask;
+         this.result = result;
+      }
+
+      @Override
+      public void run()
+      {
+         if (!state.compareAndSet(QUEUED, STARTING))
+         {
+            releaseUnusedPermit();
+            return;
+         }
+
+         try
+         {
+            super.run();
+         }
+         finally
+         {
+            finished.complete(null);
+         }
+      }
+
+      @Override
+      boolean claim()
+      {
+         return state.compareAndSet(STARTING, RUNNING);
+      }
+
+      @Override
+      public X join() throws Exception
+      {
+         ExecutionTaskRunner<?> joiner = activeTask.get();
+         if (joiner != null && steal())
+         {
+            // not yet connected: run it here rather than wait for a permit or connection the parent may hold
+            executeNested(joiner, subtask, result);
+            finished.complete(null);
+         }
+
+         try
+         {
+            return result.join();
+         }
+         catch (CompletionException e)
+         {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+               throw (Exception)cause;
+            if (cause instanceof Error)
+               throw (Error)cause;
+            throw e;
+         }
+      }
+
+      private boolean steal()
+      {
+         return transition(STOLEN);
+      }
+
+      /**
+       * Move from {@link #QUEUED} or {@link #STARTING} to the given state.
+       */
+      private boolean transition(int target)
+      {
+         int current;
+         while ((current = state.get()) == QUEUED || current == STARTING)
+         {
+            if (state.compareAndSet(current, target))
+               return true;
          }
+         return false;
+      }
+
+      @Override
+      public void cancel()
+      {
+         // cancelled first, so that a fork claimed concurrently rolls back rather than commits
+         result.cancel(true);
+         if (transition(CANCELLED))
+            finished.complete(null);
+         else if (state.get() == RUNNING)
+            cancelStatement();
+      }
+
+      void cancelIfNotStarted()
+      {
+         if (transition(CANCELLED))
+         {
+            result.cancel(false);
+            finished.complete(null);
+         }
+      }
+
+      @Override
+      public boolean isDone()
+      {
+         return result.isDone();
+      }
+   }
+
+   /**
+    * A data source, with a count of the connections in use from it so that it can be drained once
+    * replaced.
+    */
+   private static final class Binding
+   {
+      private final DataSource dataSource;
+      private final AtomicInteger active = new AtomicInteger();
+      private final CompletableFuture<Void> drained = new CompletableFuture<>();
+      private volatile boolean retired;
+
+      Binding(DataSource dataSource)
+      {
+         this.dataSource = dataSource;
+      }
+
+      /**
+       * Take an additional reference while one is already held.
+       */
+      Binding retain()
+      {
+         active.incrementAndGet();
+         return this;
+      }
+
+      void release()
+      {
+         if (active.decrementAndGet() == 0 && retired)
+            drained.complete(null);
+      }
+
+      void retire()
+      {
+         retired = true;
+         if (active.get() == 0)
+            drained.complete(null);
+      }
+   }
+
+   private static void importSnapshot(Connection conn, String snapshot) throws SQLException
+   {
+      conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+      try (Statement stmt = conn.createStatement())
+      {
+         // must be the first statement of the transaction; snapshot ids are generated by the server
+         stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshot.replace("'", "''") + "'");
+      }
+   }
+
+   /**
+    * Return a pooled connection to the isolation level it had before a snapshot task.
+    */
+   private static void restoreIsolation(Connection conn, int isolation)
+   {
+      try
+      {
+         conn.setTransactionIsolation(isolation);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.FINE, "Failed restoring transaction isolation", e);
       }
    }
 }
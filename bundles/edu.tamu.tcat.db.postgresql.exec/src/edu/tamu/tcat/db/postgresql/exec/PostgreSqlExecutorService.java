@@ -22,23 +22,58 @@ import edu.tamu.tcat.db.provider.DataSourceProvider;
 
 /**
  * A {@link PostgreSqlExecutor} more suitable to be used as an OSGI declarative service implementation.
+ * <p>
+ * The provider reference may be declared with a dynamic, greedy policy. A provider bound while the
+ * service is active then replaces the current one without deactivating the service (see
+ * {@link PostgreSqlExecutor#rebind(DataSourceProvider)}): tasks in flight finish on the old data source,
+ * and later tasks use the new one.
  */
 public class PostgreSqlExecutorService extends PostgreSqlExecutor
 {
    private static final Logger debug = Logger.getLogger(PostgreSqlExecutorService.class.getName());
 
    private DataSourceProvider bindProvider;
+   private boolean active;
 
-   public void bind(DataSourceProvider dsp)
+   public synchronized void bind(DataSourceProvider dsp)
    {
       this.bindProvider = dsp;
+      if (!active)
+         return;
+
+      rebind(dsp).whenComplete((v, ex) -> {
+         if (ex != null)
+            debug.log(Level.SEVERE, "Failed binding replacement data source provider; continuing with the previous one", ex);
+         else
+            debug.log(Level.INFO, "Replaced data source provider; tasks using the previous one have completed");
+      });
+   }
+
+   /**
+    * @since 1.5
+    */
+   public synchronized void unbind(DataSourceProvider dsp)
+   {
+      // tasks continue on the last data source until a replacement is bound or the service is disposed
+      if (bindProvider == dsp)
+         bindProvider = null;
    }
 
-   public void activate()
+   /**
+    * Activate without waiting for the bound provider's data source; tasks submitted before it is ready
+    * are queued. Activation of services sharing a provider therefore does not serialize on connecting
+    * to the database.
+    */
+   public synchronized void activate()
    {
       try
       {
-         init(bindProvider);
+         initAsync(bindProvider, Integer.valueOf(1)).whenComplete((v, ex) -> {
+            // Note: log because the runtime will not print this exception otherwise
+            if (ex != null)
+               debug.log(Level.SEVERE, "Failed initialization", ex);
+         });
+         active = true;
       }
       catch (Exception e)
       {
@@ -50,6 +85,10 @@ public class PostgreSqlExecutorService extends PostgreSqlExecutor
 
    public void dispose()
    {
+      synchronized (this)
+      {
+         active = false;
+      }
       close();
    }
 
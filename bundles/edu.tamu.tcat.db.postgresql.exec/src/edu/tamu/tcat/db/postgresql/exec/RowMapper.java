@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a {@link ResultSet} to an object. Implementations must not move the cursor.
+ *
+ * @param <T> The type of object produced for each row.
+ * @since 1.5
+ */
+@FunctionalInterface
+public interface RowMapper<T>
+{
+   T map(ResultSet rs) throws SQLException;
+
+   /**
+    * Prepare to map the rows of one result. Callers mapping many rows of a result should map them with
+    * the returned mapper, which may have resolved, once, what this mapper would otherwise look up from
+    * the metadata for each row.
+    *
+    * @param meta The metadata of the result whose rows are to be mapped.
+    * @return A mapper for rows of that result only. By default, this mapper.
+    */
+   default RowMapper<T> forResult(ResultSetMetaData meta) throws SQLException
+   {
+      return this;
+   }
+}
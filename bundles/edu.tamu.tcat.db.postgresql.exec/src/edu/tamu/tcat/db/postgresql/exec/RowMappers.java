@@ -0,0 +1,430 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates {@link RowMapper}s that construct objects from rows without per-row reflection.
+ * <p>
+ * The first time a mapper sees a result of a given shape (its column labels), it matches the columns to
+ * the target class and composes a single {@link MethodHandle} that reads each matched column by index
+ * with the typed {@code ResultSet} getter (e.g. {@code getLong} for a {@code long} property, so primitive
+ * values are not boxed) and passes it to the constructor or setter. The handle is cached per target class
+ * and shape, and reused for every row of every later result of that shape. Callers mapping many rows
+ * should obtain the mapper for their result with {@link RowMapper#forResult(ResultSetMetaData)}, which
+ * looks up the handle once; {@link RowMapper#map(ResultSet)} called directly looks it up for each new
+ * result set it sees.
+ * <p>
+ * A target class is populated in one of two ways:
+ * <ul>
+ *   <li>If it has a public no-argument constructor, each column is written to the public setter
+ *       ({@code setFirstName}) or public non-final field ({@code firstName}) of the same name. Column
+ *       labels are matched ignoring case and underscores, so {@code first_name} matches both. Columns with
+ *       no matching property are not read.</li>
+ *   <li>Otherwise it must have a public constructor taking one argument per column. Arguments are matched
+ *       to columns by parameter name if the class was compiled with {@code -parameters}, and by position
+ *       otherwise.</li>
+ * </ul>
+ * The target class and its members must be public.
+ *
+ * @since 1.5
+ */
+public final class RowMappers
+{
+   private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+   private static final MethodHandles.Lookup publicLookup = MethodHandles.publicLookup();
+
+   /** Composed mappers, of type (ResultSet)Object, by target class and then by result shape. */
+   private static final ClassValue<Map<List<String>, MethodHandle>> cache = new ClassValue<Map<List<String>, MethodHandle>>()
+   {
+      @Override
+      protected Map<List<String>, MethodHandle> computeValue(Class<?> type)
+      {
+         return new ConcurrentHashMap<>();
+      }
+   };
+
+   private RowMappers()
+   {
+   }
+
+   /**
+    * @return A mapper producing instances of the given class. The mapper is thread-safe and may be held
+    *         and reused for any number of queries.
+    */
+   public static <T> RowMapper<T> of(Class<T> type)
+   {
+      return new CachingMapper<>(type);
+   }
+
+   private static final class CachingMapper<T> implements RowMapper<T>
+   {
+      private final Class<T> type;
+      /**
+       * The mapper for the most recent result set passed to {@link #map(ResultSet)}; avoids inspecting
+       * metadata for every row. Holds the result set weakly, since this mapper may be long-lived.
+       */
+      private volatile Binding binding;
+
+      CachingMapper(Class<T> type)
+      {
+         this.type = type;
+      }
+
+      @Override
+      public RowMapper<T> forResult(ResultSetMetaData meta) throws SQLException
+      {
+         MethodHandle handle = resolve(type, meta);
+         return rs -> invoke(type, handle, rs);
+      }
+
+      @Override
+      public T map(ResultSet rs) throws SQLException
+      {
+         Binding b = binding;
+         if (b == null || b.rs.get() != rs)
+         {
+            b = new Binding(rs, resolve(type, rs.getMetaData()));
+            binding = b;
+         }
+         return invoke(type, b.handle, rs);
+      }
+   }
+
+   private static final class Binding
+   {
+      private final WeakReference<ResultSet> rs;
+      private final MethodHandle handle;
+
+      Binding(ResultSet rs, MethodHandle handle)
+      {
+         this.rs = new WeakReference<>(rs);
+         this.handle = handle;
+      }
+   }
+
+   private static <T> T invoke(Class<T> type, MethodHandle handle, ResultSet rs) throws SQLException
+   {
+      try
+      {
+         return type.cast((Object)handle.invokeExact(rs));
+      }
+      catch (SQLException | RuntimeException | Error e)
+      {
+         throw e;
+      }
+      catch (Throwable t)
+      {
+         throw new SQLException("Failed mapping row to " + type.getName(), t);
+      }
+   }
+
+   private static MethodHandle resolve(Class<?> type, ResultSetMetaData meta) throws SQLException
+   {
+      int count = meta.getColumnCount();
+      List<String> shape = new ArrayList<>(count);
+      for (int i = 1; i <= count; i++)
+         shape.add(normalize(meta.getColumnLabel(i)));
+
+      Map<List<String>, MethodHandle> byShape = cache.get(type);
+      MethodHandle handle = byShape.get(shape);
+      if (handle == null)
+      {
+         try
+         {
+            handle = build(type, shape);
+         }
+         catch (ReflectiveOperationException e)
+         {
+            throw new IllegalArgumentException("Cannot map columns " + shape + " to " + type.getName(), e);
+         }
+         byShape.putIfAbsent(shape, handle);
+      }
+      return handle;
+   }
+
+   private static MethodHandle build(Class<?> type, List<String> shape) throws ReflectiveOperationException
+   {
+      if (!Modifier.isPublic(type.getModifiers()))
+         throw new IllegalArgumentException("Row type " + type.getName() + " must be public");
+
+      Constructor<?> noArg = null;
+      for (Constructor<?> c : type.getConstructors())
+      {
+         if (c.getParameterCount() == 0)
+            noArg = c;
+      }
+
+      return noArg != null ? buildPopulating(noArg, shape) : buildConstructing(type, shape);
+   }
+
+   /**
+    * Compose (ResultSet)Object that creates an instance with the no-argument constructor and then writes
+    * each matched column to its property.
+    */
+   private static MethodHandle buildPopulating(Constructor<?> noArg, List<String> shape) throws ReflectiveOperationException
+   {
+      Class<?> type = noArg.getDeclaringClass();
+      Map<String, MethodHandle> writers = findWriters(type);
+
+      // (Object, ResultSet)void, composed of one writer per matched column
+      MethodHandle populate = MethodHandles.dropArguments(MethodHandles.constant(Object.class, null), 0, Object.class, ResultSet.class);
+      populate = populate.asType(MethodType.methodType(void.class, Object.class, ResultSet.class));
+      int matched = 0;
+      for (int i = shape.size() - 1; i >= 0; i--)
+      {
+         MethodHandle writer = writers.get(shape.get(i));
+         if (writer == null)
+            continue;
+
+         // writer: (T, V)void; reader: (ResultSet)V
+         MethodHandle reader = reader(writer.type().parameterType(1), i + 1);
+         MethodHandle write = MethodHandles.filterArguments(writer, 1, reader)
+               .asType(MethodType.methodType(void.class, Object.class, ResultSet.class));
+         populate = MethodHandles.foldArguments(populate, write);
+         matched++;
+      }
+
+      if (matched == 0)
+         throw new IllegalArgumentException("No columns of " + shape + " match a property of " + type.getName());
+
+      // (Object, ResultSet)Object returning the populated instance
+      MethodHandle identity = MethodHandles.dropArguments(MethodHandles.identity(Object.class), 1, ResultSet.class);
+      MethodHandle populated = MethodHandles.foldArguments(identity, populate);
+
+      MethodHandle create = publicLookup.unreflectConstructor(noArg).asType(MethodType.methodType(Object.class));
+      return MethodHandles.collectArguments(populated, 0, create);
+   }
+
+   /**
+    * Compose (ResultSet)Object that passes one column to each argument of a constructor.
+    */
+   private static MethodHandle buildConstructing(Class<?> type, List<String> shape) throws ReflectiveOperationException
+   {
+      Constructor<?> byName = null;
+      Constructor<?> byPosition = null;
+      int candidates = 0;
+      for (Constructor<?> c : type.getConstructors())
+      {
+         if (c.getParameterCount() != shape.size())
+            continue;
+
+         candidates++;
+         byPosition = c;
+         if (columnOrder(c, shape) != null)
+            byName = c;
+      }
+
+      Constructor<?> ctor = byName != null ? byName : byPosition;
+      if (ctor == null)
+         throw new IllegalArgumentException(type.getName() + " has neither a public no-argument constructor nor a public constructor with " + shape.size() + " parameters");
+      if (byName == null && candidates > 1)
+         throw new IllegalArgumentException(type.getName() + " has several public constructors with " + shape.size() + " parameters; compile it with -parameters so they can be matched by name");
+
+      int[] columns = byName != null ? columnOrder(ctor, shape) : identityOrder(shape.size());
+      MethodHandle handle = publicLookup.unreflectConstructor(ctor);
+      Class<?>[] params = ctor.getParameterTypes();
+      for (int i = 0; i < params.length; i++)
+         handle = MethodHandles.filterArguments(handle, i, reader(params[i], columns[i] + 1));
+
+      // (ResultSet, ResultSet, ...)T to (ResultSet)Object
+      handle = handle.asType(handle.type().changeReturnType(Object.class));
+      return MethodHandles.permuteArguments(handle, MethodType.methodType(Object.class, ResultSet.class), new int[params.length]);
+   }
+
+   /**
+    * @return For each constructor parameter, the index of the column of the same name, or {@code null}
+    *         if parameter names are unavailable or do not all match.
+    */
+   private static int[] columnOrder(Constructor<?> ctor, List<String> shape)
+   {
+      Parameter[] params = ctor.getParameters();
+      int[] order = new int[params.length];
+      for (int i = 0; i < params.length; i++)
+      {
+         if (!params[i].isNamePresent())
+            return null;
+         order[i] = shape.indexOf(normalize(params[i].getName()));
+         if (order[i] < 0)
+            return null;
+      }
+      return order;
+   }
+
+   private static int[] identityOrder(int size)
+   {
+      int[] order = new int[size];
+      Arrays.setAll(order, i -> i);
+      return order;
+   }
+
+   /**
+    * @return Handles of type (T, V)void for each public setter and public non-final field, by normalized
+    *         property name. Setters take precedence over fields.
+    */
+   private static Map<String, MethodHandle> findWriters(Class<?> type) throws IllegalAccessException
+   {
+      Map<String, MethodHandle> writers = new HashMap<>();
+      for (Field f : type.getFields())
+      {
+         int mod = f.getModifiers();
+         if (!Modifier.isStatic(mod) && !Modifier.isFinal(mod))
+            writers.put(normalize(f.getName()), publicLookup.unreflectSetter(f));
+      }
+
+      for (Method m : type.getMethods())
+      {
+         String name = m.getName();
+         if (name.length() > 3 && name.startsWith("set") && m.getParameterCount() == 1 && !Modifier.isStatic(m.getModifiers()))
+         {
+            MethodHandle setter = publicLookup.unreflect(m);
+            // drop any return value of fluent setters
+            writers.put(normalize(name.substring(3)), setter.asType(setter.type().changeReturnType(void.class)));
+         }
+      }
+      return writers;
+   }
+
+   /**
+    * @return A handle of type (ResultSet)V reading the column at the given index as the given type.
+    */
+   private static MethodHandle reader(Class<?> valueType, int column) throws ReflectiveOperationException
+   {
+      MethodHandle getter;
+      if (valueType == int.class)
+         getter = getter("getInt", int.class);
+      else if (valueType == long.class)
+         getter = getter("getLong", long.class);
+      else if (valueType == double.class)
+         getter = getter("getDouble", double.class);
+      else if (valueType == float.class)
+         getter = getter("getFloat", float.class);
+      else if (valueType == short.class)
+         getter = getter("getShort", short.class);
+      else if (valueType == byte.class)
+         getter = getter("getByte", byte.class);
+      else if (valueType == boolean.class)
+         getter = getter("getBoolean", boolean.class);
+      else if (valueType == String.class)
+         getter = getter("getString", String.class);
+      else if (valueType == BigDecimal.class)
+         getter = getter("getBigDecimal", BigDecimal.class);
+      else if (valueType == Timestamp.class)
+         getter = getter("getTimestamp", Timestamp.class);
+      else if (valueType == Date.class)
+         getter = getter("getDate", Date.class);
+      else if (valueType == Time.class)
+         getter = getter("getTime", Time.class);
+      else if (valueType == byte[].class)
+         getter = getter("getBytes", byte[].class);
+      else if (valueType == Integer.class || valueType == Long.class || valueType == Double.class
+            || valueType == Float.class || valueType == Short.class || valueType == Boolean.class)
+         getter = lookup.findStatic(RowMappers.class, "get" + valueType.getSimpleName(),
+               MethodType.methodType(valueType, ResultSet.class, int.class));
+      else if (valueType.isEnum())
+         getter = MethodHandles.insertArguments(
+               lookup.findStatic(RowMappers.class, "getEnum", MethodType.methodType(Enum.class, ResultSet.class, int.class, Class.class)),
+               2, valueType);
+      else
+         // e.g. java.time types and UUID, which the PostgreSQL driver converts directly
+         getter = MethodHandles.insertArguments(
+               getter("getObject", Object.class, Class.class), 2, valueType);
+
+      getter = MethodHandles.insertArguments(getter, 1, Integer.valueOf(column));
+      return getter.asType(MethodType.methodType(valueType, ResultSet.class));
+   }
+
+   private static MethodHandle getter(String name, Class<?> returnType, Class<?>... extra) throws ReflectiveOperationException
+   {
+      Class<?>[] params = new Class<?>[extra.length + 1];
+      params[0] = int.class;
+      System.arraycopy(extra, 0, params, 1, extra.length);
+      return publicLookup.findVirtual(ResultSet.class, name, MethodType.methodType(returnType, params));
+   }
+
+   private static String normalize(String name)
+   {
+      return name.replace("_", "").toLowerCase(Locale.ROOT);
+   }
+
+   // null-preserving readers for boxed types, found reflectively by reader()
+
+   private static Integer getInteger(ResultSet rs, int column) throws SQLException
+   {
+      int v = rs.getInt(column);
+      return rs.wasNull() ? null : Integer.valueOf(v);
+   }
+
+   private static Long getLong(ResultSet rs, int column) throws SQLException
+   {
+      long v = rs.getLong(column);
+      return rs.wasNull() ? null : Long.valueOf(v);
+   }
+
+   private static Double getDouble(ResultSet rs, int column) throws SQLException
+   {
+      double v = rs.getDouble(column);
+      return rs.wasNull() ? null : Double.valueOf(v);
+   }
+
+   private static Float getFloat(ResultSet rs, int column) throws SQLException
+   {
+      float v = rs.getFloat(column);
+      return rs.wasNull() ? null : Float.valueOf(v);
+   }
+
+   private static Short getShort(ResultSet rs, int column) throws SQLException
+   {
+      short v = rs.getShort(column);
+      return rs.wasNull() ? null : Short.valueOf(v);
+   }
+
+   private static Boolean getBoolean(ResultSet rs, int column) throws SQLException
+   {
+      boolean v = rs.getBoolean(column);
+      return rs.wasNull() ? null : Boolean.valueOf(v);
+   }
+
+   @SuppressWarnings({ "unchecked", "rawtypes" })
+   private static Enum<?> getEnum(ResultSet rs, int column, Class type) throws SQLException
+   {
+      String v = rs.getString(column);
+      return v == null ? null : Enum.valueOf(type, v);
+   }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.tamu.tcat.db.exec.sql.SqlExecutor;
+
+/**
+ * Applies an operation to the items of a batch within one transaction, such that items that fail are
+ * rolled back individually rather than failing the whole transaction.
+ * <p>
+ * Items are applied in chunks, each under a {@link Savepoint}. When a chunk fails it is rolled back to its
+ * savepoint and split in half, and each half is applied again under its own savepoint, until each failing
+ * item is isolated in a chunk of its own. A batch with few failures therefore needs few savepoints beyond
+ * one per chunk, and the items that succeed are committed with the transaction. A chunk size of 1 applies
+ * each item under its own savepoint, which never re-applies an item but costs a savepoint per item.
+ * <p>
+ * Items of a failed chunk are applied more than once, so operations must have no effects outside the
+ * database transaction.
+ * <p>
+ * Use {@link #task} or {@link #chunkTask} to submit a batch to an executor, or {@link #apply} or
+ * {@link #applyChunks} within another task.
+ *
+ * @param <I> The type of item.
+ * @since 1.5
+ */
+public class SavepointBatch<I>
+{
+   /**
+    * An operation applied to a single item.
+    */
+   @FunctionalInterface
+   public interface Operation<I>
+   {
+      void apply(Connection conn, I item) throws Exception;
+   }
+
+   /**
+    * An operation applied to a chunk of items at once, e.g. by executing a JDBC batch.
+    */
+   @FunctionalInterface
+   public interface ChunkOperation<I>
+   {
+      void apply(Connection conn, List<I> chunk) throws Exception;
+   }
+
+   private final Connection conn;
+   private final List<I> items;
+   private final ChunkOperation<? super I> operation;
+   private final List<Failure<I>> failures = new ArrayList<>();
+
+   private SavepointBatch(Connection conn, List<I> items, ChunkOperation<? super I> operation)
+   {
+      this.conn = conn;
+      this.items = items;
+      this.operation = operation;
+   }
+
+   /**
+    * @return A task that applies the operation to each item and returns a report. The task completes
+    *         normally, committing the items that succeeded, unless a savepoint cannot be set or rolled
+    *         back.
+    */
+   public static <I> SqlExecutor.ExecutorTask<Report<I>> task(List<I> items, Operation<? super I> operation, int chunkSize)
+   {
+      List<I> copy = new ArrayList<>(items);
+      return conn -> apply(conn, copy, operation, chunkSize);
+   }
+
+   /**
+    * @return A task that applies the operation to chunks of the items and returns a report. The task
+    *         completes normally, committing the items that succeeded, unless a savepoint cannot be set
+    *         or rolled back.
+    */
+   public static <I> SqlExecutor.ExecutorTask<Report<I>> chunkTask(List<I> items, ChunkOperation<? super I> operation, int chunkSize)
+   {
+      List<I> copy = new ArrayList<>(items);
+      return conn -> applyChunks(conn, copy, operation, chunkSize);
+   }
+
+   /**
+    * Apply an operation to each item in the current transaction of a connection. Auto-commit must be off.
+    *
+    * @param chunkSize The number of items applied under each savepoint before any failure.
+    * @return Which items failed, and why.
+    * @throws SQLException If a savepoint cannot be set, released or rolled back; the transaction should
+    *         then be rolled back.
+    */
+   public static <I> Report<I> apply(Connection conn, List<I> items, Operation<? super I> operation, int chunkSize) throws SQLException
+   {
+      return applyChunks(conn, items, (c, chunk) -> {
+         for (I item : chunk)
+            operation.apply(c, item);
+      }, chunkSize);
+   }
+
+   /**
+    * Apply an operation to chunks of the items in the current transaction of a connection. Auto-commit
+    * must be off. The operation is applied to sub-lists of failed chunks, down to single items.
+    *
+    * @param chunkSize The largest number of items passed to the operation at once.
+    * @return Which items failed, and why.
+    * @throws SQLException If a savepoint cannot be set, released or rolled back; the transaction should
+    *         then be rolled back.
+    */
+   public static <I> Report<I> applyChunks(Connection conn, List<I> items, ChunkOperation<? super I> operation, int chunkSize) throws SQLException
+   {
+      if (chunkSize < 1)
+         throw new IllegalArgumentException("Chunk size must be at least 1, but was " + chunkSize);
+
+      SavepointBatch<I> batch = new SavepointBatch<>(conn, items, operation);
+      for (int start = 0; start < items.size(); start += chunkSize)
+         batch.applyRange(start, Math.min(items.size(), start + chunkSize));
+
+      return new Report<>(items.size(), batch.failures);
+   }
+
+   /**
+    * Apply the items in [from, to) under a savepoint, bisecting on failure.
+    */
+   private void applyRange(int from, int to) throws SQLException
+   {
+      Savepoint savepoint = conn.setSavepoint();
+      try
+      {
+         operation.apply(conn, Collections.unmodifiableList(items.subList(from, to)));
+      }
+      catch (Exception ex)
+      {
+         conn.rollback(savepoint);
+         // rolling back does not release the savepoint
+         conn.releaseSavepoint(savepoint);
+         if (to - from == 1)
+         {
+            failures.add(new Failure<>(from, items.get(from), ex));
+            return;
+         }
+
+         int mid = (from + to) >>> 1;
+         applyRange(from, mid);
+         applyRange(mid, to);
+         return;
+      }
+
+      conn.releaseSavepoint(savepoint);
+   }
+
+   /**
+    * The failure of a single item.
+    */
+   public static final class Failure<I>
+   {
+      private final int index;
+      private final I item;
+      private final Exception error;
+
+      Failure(int index, I item, Exception error)
+      {
+         this.index = index;
+         this.item = item;
+         this.error = error;
+      }
+
+      /**
+       * @return The position of the item in the batch.
+       */
+      public int getIndex()
+      {
+         return index;
+      }
+
+      public I getItem()
+      {
+         return item;
+      }
+
+      public Exception getError()
+      {
+         return error;
+      }
+   }
+
+   /**
+    * The outcome of a batch.
+    */
+   public static final class Report<I>
+   {
+      private final int size;
+      private final List<Failure<I>> failures;
+
+      Report(int size, List<Failure<I>> failures)
+      {
+         this.size = size;
+         this.failures = Collections.unmodifiableList(failures);
+      }
+
+      /**
+       * @return The number of items in the batch.
+       */
+      public int getSize()
+      {
+         return size;
+      }
+
+      public int getSucceededCount()
+      {
+         return size - failures.size();
+      }
+
+      /**
+       * @return The items that failed, in batch order.
+       */
+      public List<Failure<I>> getFailures()
+      {
+         return failures;
+      }
+
+      public boolean hasFailures()
+      {
+         return !failures.isEmpty();
+      }
+   }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+import edu.tamu.tcat.db.exec.sql.SqlExecutor;
+
+/**
+ * Runs the same task against several databases in parallel and combines the results, e.g. for
+ * reporting queries that must visit every shard of a {@link ShardedSqlExecutor}.
+ * <p>
+ * Each database is reached through its own executor (typically one {@link PostgreSqlExecutor} per
+ * {@link edu.tamu.tcat.db.provider.DataSourceProvider}), so the task runs concurrently on all of them and
+ * the overall latency is that of the slowest database rather than the sum.
+ * <p>
+ * Every scatter has a deadline. When it passes, tasks that have not yet completed are cancelled and the
+ * {@link Result} reports what was gathered so far; callers decide whether a partial result is acceptable.
+ *
+ * @since 1.5
+ */
+public class ScatterGather
+{
+   private static final ScheduledThreadPoolExecutor deadlines;
+   static
+   {
+      deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+         Thread t = new Thread(r, "ScatterGather deadline");
+         t.setDaemon(true);
+         return t;
+      });
+      deadlines.setRemoveOnCancelPolicy(true);
+   }
+
+   private final Map<String, SqlExecutor> targets;
+
+   /**
+    * @param targets The executor of each database, by an identifier used to report results.
+    */
+   public ScatterGather(Map<String, ? extends SqlExecutor> targets)
+   {
+      if (targets.isEmpty())
+         throw new IllegalArgumentException("At least one target executor is required");
+      this.targets = Collections.unmodifiableMap(new LinkedHashMap<>(targets));
+   }
+
+   /**
+    * Create a scatter-gather over the shards of a sharded executor as they are at the time of the call.
+    */
+   public static ScatterGather of(ShardedSqlExecutor executor)
+   {
+      return new ScatterGather(executor.getShards());
+   }
+
+   /**
+    * Submit a task to every target.
+    *
+    * @param timeout The total time allowed for all targets.
+    * @return A future that completes when every target has completed or the deadline passes, whichever
+    *         is first. It never completes exceptionally because of a target's failure; failures are
+    *         reported by the {@link Result}.
+    */
+   public <T> CompletableFuture<Result<T>> scatter(SqlExecutor.ExecutorTask<T> task, long timeout, TimeUnit unit)
+   {
+      Map<String, CompletableFuture<T>> futures = new LinkedHashMap<>();
+      targets.forEach((id, executor) -> futures.put(id, executor.submit(task)));
+
+      CompletableFuture<Result<T>> result = new CompletableFuture<>();
+      ScheduledFuture<?> deadline = deadlines.schedule(() -> result.complete(gather(futures)), timeout, unit);
+
+      CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+            .whenComplete((ignored, ex) -> {
+               deadline.cancel(false);
+               result.complete(gather(futures));
+            });
+
+      return result;
+   }
+
+   /**
+    * Submit a task to every target and combine the partial results.
+    *
+    * @param merge Combines the gathered results; see {@link #reducing(BinaryOperator)} and
+    *        {@link #sortedMerge(Comparator)} for common cases.
+    * @param timeout The total time allowed for all targets.
+    */
+   public <T, R> CompletableFuture<R> scatter(SqlExecutor.ExecutorTask<T> task,
+                                              Function<? super Result<T>, ? extends R> merge,
+                                              long timeout,
+                                              TimeUnit unit)
+   {
+      return scatter(task, timeout, unit).thenApply(merge);
+   }
+
+   private static <T> Result<T> gather(Map<String, CompletableFuture<T>> futures)
+   {
+      Map<String, T> values = new LinkedHashMap<>();
+      Map<String, Throwable> failures = new LinkedHashMap<>();
+      Set<String> timedOut = new LinkedHashSet<>();
+
+      futures.forEach((id, future) -> {
+         if (!future.isDone())
+         {
+            // a task that has not started will not run; a running task completes but is ignored
+            future.cancel(true);
+            timedOut.add(id);
+            return;
+         }
+
+         try
+         {
+            values.put(id, future.join());
+         }
+         catch (CompletionException e)
+         {
+            failures.put(id, e.getCause());
+         }
+         catch (CancellationException e)
+         {
+            failures.put(id, e);
+         }
+      });
+
+      return new Result<>(values, failures, timedOut);
+   }
+
+   /**
+    * @return A merge function that reduces the values gathered from all targets that succeeded, or
+    *         returns {@code null} if none did.
+    */
+   public static <T> Function<Result<T>, T> reducing(BinaryOperator<T> combiner)
+   {
+      return result -> result.getValues().values().stream().reduce(combiner).orElse(null);
+   }
+
+   /**
+    * @return A merge function for targets that each return a sorted sequence. The sequences are merged
+    *         lazily as the returned iterator is consumed, comparing only the current head of each.
+    */
+   public static <E, C extends Iterable<? extends E>> Function<Result<C>, Iterator<E>> sortedMerge(Comparator<? super E> order)
+   {
+      return result -> mergeSorted(result.getValues().values(), order);
+   }
+
+   /**
+    * Merge sequences that are each sorted by {@code order} into a single sorted sequence. Elements are
+    * taken from the sources only as the returned iterator advances.
+    */
+   public static <E> Iterator<E> mergeSorted(Collection<? extends Iterable<? extends E>> sources, Comparator<? super E> order)
+   {
+      List<Iterator<? extends E>> iterators = new ArrayList<>(sources.size());
+      for (Iterable<? extends E> source : sources)
+         iterators.add(source.iterator());
+      return new MergingIterator<>(iterators, order);
+   }
+
+   /**
+    * The outcome of a scatter: the value returned by each target that succeeded, the failure of each that
+    * did not, and the targets that had not completed by the deadline.
+    */
+   public static final class Result<T>
+   {
+      private final Map<String, T> values;
+      private final Map<String, Throwable> failures;
+      private final Set<String> timedOut;
+
+      private Result(Map<String, T> values, Map<String, Throwable> failures, Set<String> timedOut)
+      {
+         this.values = Collections.unmodifiableMap(values);
+         this.failures = Collections.unmodifiableMap(failures);
+         this.timedOut = Collections.unmodifiableSet(timedOut);
+      }
+
+      /**
+       * @return The value of each target that succeeded, by target id, in the order targets were given.
+       */
+      public Map<String, T> getValues()
+      {
+         return values;
+      }
+
+      /**
+       * @return The failure of each target whose task completed exceptionally, by target id.
+       */
+      public Map<String, Throwable> getFailures()
+      {
+         return failures;
+      }
+
+      /**
+       * @return The ids of targets whose tasks had not completed by the deadline.
+       */
+      public Set<String> getTimedOut()
+      {
+         return timedOut;
+      }
+
+      /**
+       * @return {@code true} if every target succeeded.
+       */
+      public boolean isComplete()
+      {
+         return failures.isEmpty() && timedOut.isEmpty();
+      }
+   }
+
+   private static final class MergingIterator<E> implements Iterator<E>
+   {
+      private final PriorityQueue<Head<E>> heads;
+
+      MergingIterator(List<Iterator<? extends E>> sources, Comparator<? super E> order)
+      {
+         Comparator<Head<E>> byValue = (a, b) -> order.compare(a.value, b.value);
+         this.heads = new PriorityQueue<>(Math.max(1, sources.size()), byValue);
+         for (Iterator<? extends E> source : sources)
+         {
+            if (source.hasNext())
+               heads.add(new Head<>(source.next(), source));
+         }
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         return !heads.isEmpty();
+      }
+
+      @Override
+      public E next()
+      {
+         Head<E> head = heads.poll();
+         if (head == null)
+            throw new NoSuchElementException();
+
+         E value = head.value;
+         if (head.source.hasNext())
+         {
+            head.value = head.source.next();
+            heads.add(head);
+         }
+         return value;
+      }
+   }
+
+   private static final class Head<E>
+   {
+      private E value;
+      private final Iterator<? extends E> source;
+
+      Head(E value, Iterator<? extends E> source)
+      {
+         this.value = value;
+         this.source = source;
+      }
+   }
+}
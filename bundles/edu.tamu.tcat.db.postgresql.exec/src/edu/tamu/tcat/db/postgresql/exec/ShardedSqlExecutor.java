@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import edu.tamu.tcat.db.core.DataSourceException;
+import edu.tamu.tcat.db.exec.sql.SqlExecutor;
+import edu.tamu.tcat.db.provider.DataSourceProvider;
+
+/**
+ * A {@link SqlExecutor} that spreads tasks across several databases ("shards") by a shard key.
+ * <p>
+ * Shards are placed on a {@link ConsistentHashRing}, so a given key is always routed to the same shard,
+ * and adding a shard moves only the keys that the new shard takes over. Each shard has its own
+ * {@link PostgreSqlExecutor} with its own threads, so tasks queued behind a slow or unavailable shard do
+ * not delay tasks for the others.
+ * <p>
+ * Tasks are routed either by an explicit key with {@link #submit(Object, SqlExecutor.ExecutorTask)} or,
+ * through the plain {@link #submit(SqlExecutor.ExecutorTask)}, by implementing {@link ShardedTask}.
+ * Keys are placed on the ring by their {@link String#valueOf(Object) string form}.
+ * <p>
+ * This executor has lifecycle, and should be {@link #close()}d when the application determines its
+ * lifecycle is complete. Closing it closes the executor of every shard.
+ *
+ * @since 1.5
+ */
+public class ShardedSqlExecutor implements SqlExecutor, AutoCloseable
+{
+   /** The default number of ring positions per shard. */
+   public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+   /**
+    * A task that carries the key used to select its shard.
+    */
+   public interface ShardedTask<T> extends SqlExecutor.ExecutorTask<T>
+   {
+      /**
+       * @return The key that determines the shard this task runs on, e.g. a tenant or account id.
+       */
+      Object getShardKey();
+   }
+
+   private final ConsistentHashRing<PostgreSqlExecutor> ring;
+   private final Integer threadsPerShard;
+   private final Map<String, PostgreSqlExecutor> shards = new LinkedHashMap<>();
+
+   /**
+    * Create a sharded executor with the default number of virtual nodes and a single thread per shard.
+    */
+   public ShardedSqlExecutor()
+   {
+      this(DEFAULT_VIRTUAL_NODES, Integer.valueOf(1));
+   }
+
+   /**
+    * @param virtualNodes The number of ring positions per shard.
+    * @param threadsPerShard The number of threads of each shard's executor, as for
+    *        {@link PostgreSqlExecutor#init(DataSourceProvider, Integer)}.
+    */
+   public ShardedSqlExecutor(int virtualNodes, Integer threadsPerShard)
+   {
+      this.ring = new ConsistentHashRing<>(virtualNodes);
+      this.threadsPerShard = threadsPerShard;
+   }
+
+   /**
+    * Add a shard. Keys are routed to it as soon as this method returns; tasks already submitted to other
+    * shards for keys that now belong to the new shard are unaffected. Moving any existing data for those
+    * keys is the responsibility of the application.
+    *
+    * @param shardId A stable identifier for the shard. It determines the shard's positions on the ring, so
+    *        it must be the same each time the application configures the same shard.
+    * @throws IllegalStateException If a shard with this id has already been added.
+    */
+   public void addShard(String shardId, DataSourceProvider dsp) throws DataSourceException
+   {
+      synchronized (shards)
+      {
+         if (shards.containsKey(shardId))
+            throw new IllegalStateException("Shard [" + shardId + "] has already been added");
+
+         PostgreSqlExecutor executor = new PostgreSqlExecutor();
+         executor.init(dsp, threadsPerShard);
+         shards.put(shardId, executor);
+         ring.add(shardId, executor);
+      }
+   }
+
+   /**
+    * Remove a shard. New tasks for its keys are routed to the remaining shards, including tasks that were
+    * routed to it but refused once its executor began closing; tasks already queued on it are allowed to
+    * complete before its executor is closed.
+    *
+    * @return {@code true} if the shard was present.
+    */
+   public boolean removeShard(String shardId)
+   {
+      PostgreSqlExecutor executor;
+      synchronized (shards)
+      {
+         executor = shards.remove(shardId);
+         if (executor == null)
+            return false;
+
+         ring.remove(shardId);
+      }
+
+      executor.close();
+      return true;
+   }
+
+   /**
+    * @return The executor of the shard responsible for the given key.
+    * @throws IllegalStateException If no shards have been added.
+    */
+   public PostgreSqlExecutor getShard(Object shardKey)
+   {
+      PostgreSqlExecutor executor = ring.route(shardKey);
+      if (executor == null)
+         throw new IllegalStateException("No shards have been added");
+      return executor;
+   }
+
+   /**
+    * @return The executor of each shard, by shard id, in the order the shards were added.
+    */
+   public Map<String, PostgreSqlExecutor> getShards()
+   {
+      synchronized (shards)
+      {
+         return Collections.unmodifiableMap(new LinkedHashMap<>(shards));
+      }
+   }
+
+   /**
+    * Submit a task to the shard selected by its {@link ShardedTask#getShardKey() shard key}. The returned
+    * future fails with an {@link IllegalArgumentException} if the task is not a {@link ShardedTask}.
+    */
+   @Override
+   public <T> CompletableFuture<T> submit(SqlExecutor.ExecutorTask<T> task)
+   {
+      if (!(task instanceof ShardedTask))
+      {
+         CompletableFuture<T> result = new CompletableFuture<>();
+         result.completeExceptionally(new IllegalArgumentException("Task does not supply a shard key; "
+               + "implement " + ShardedTask.class.getSimpleName() + " or submit with an explicit key"));
+         return result;
+      }
+
+      return submit(((ShardedTask<T>)task).getShardKey(), task);
+   }
+
+   /**
+    * Submit a task to the shard responsible for the given key.
+    */
+   public <T> CompletableFuture<T> submit(Object shardKey, SqlExecutor.ExecutorTask<T> task)
+   {
+      while (true)
+      {
+         PostgreSqlExecutor executor;
+         try
+         {
+            executor = getShard(shardKey);
+         }
+         catch (IllegalStateException e)
+         {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+         }
+
+         try
+         {
+            return executor.submit(task);
+         }
+         catch (RejectedExecutionException e)
+         {
+            // the shard was removed, and its executor closed, after this task was routed to it; the
+            // ring no longer routes to it, so route again
+            if (ring.route(shardKey) == executor)
+               throw e;
+         }
+      }
+   }
+
+   @Override
+   public void close()
+   {
+      Map<String, PostgreSqlExecutor> closing;
+      synchronized (shards)
+      {
+         closing = new LinkedHashMap<>(shards);
+         shards.clear();
+         for (String id : closing.keySet())
+            ring.remove(id);
+      }
+
+      closing.values().forEach(PostgreSqlExecutor::close);
+   }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql.exec;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.tamu.tcat.db.exec.sql.SqlExecutor;
+
+/**
+ * Collects single-row writes of the same statement from many callers and runs them as one JDBC batch.
+ * <p>
+ * Parameter sets submitted for the same SQL text are held until either {@code maxBatchSize} have been
+ * collected or {@code maxDelay} has passed since the first, and are then executed with
+ * {@link PreparedStatement#addBatch()}/{@link PreparedStatement#executeBatch()} as a single task on the
+ * underlying executor, i.e. on one connection and in one transaction. Each caller's future completes
+ * with the update count of its own parameter set. With the PostgreSQL driver's
+ * {@code reWriteBatchedInserts} option, batched {@code INSERT}s are rewritten into multi-row statements
+ * and report {@link java.sql.Statement#SUCCESS_NO_INFO} instead of a count.
+ * <p>
+ * If a batch fails, its transaction is rolled back and each parameter set is retried as a task of its
+ * own, so a single bad row fails only the caller that submitted it. Statements batched this way should
+ * therefore be independent of each other.
+ * <p>
+ * Batches are submitted, and their callers' futures completed, on a dispatch executor rather than on
+ * the threads of the underlying executor, so that retries are never run inline in a failed task.
+ * Dependent actions added to the returned futures without an executor of their own may run there.
+ * <p>
+ * This batcher has lifecycle; {@link #close()} flushes any open batches.
+ *
+ * @since 1.5
+ */
+public class StatementBatcher implements AutoCloseable
+{
+   private static final Logger debug = Logger.getLogger(StatementBatcher.class.getName());
+
+   /** Only schedules flushes, handing each to a batcher's dispatch executor. */
+   private static final ScheduledThreadPoolExecutor timer;
+   /** The default dispatch executor; unbounded, so that one slow caller cannot hold up other batches. */
+   private static final ExecutorService defaultDispatcher;
+   static
+   {
+      timer = new ScheduledThreadPoolExecutor(1, r -> {
+         Thread t = new Thread(r, "StatementBatcher timer");
+         t.setDaemon(true);
+         return t;
+      });
+      timer.setRemoveOnCancelPolicy(true);
+
+      defaultDispatcher = Executors.newCachedThreadPool(r -> {
+         Thread t = new Thread(r, "StatementBatcher dispatch");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   private final SqlExecutor executor;
+   private final Executor dispatcher;
+   private final int maxBatchSize;
+   private final long maxDelayNanos;
+
+   // guarded by this
+   private final Map<String, Batch> open = new HashMap<>();
+   private boolean closed;
+
+   /**
+    * @param executor The executor on which batches run.
+    * @param maxBatchSize The number of parameter sets at which a batch is flushed immediately.
+    * @param maxDelay The longest time a parameter set waits for others to join its batch.
+    */
+   public StatementBatcher(SqlExecutor executor, int maxBatchSize, long maxDelay, TimeUnit unit)
+   {
+      this(executor, maxBatchSize, maxDelay, unit, defaultDispatcher);
+   }
+
+   /**
+    * @param dispatcher The executor on which batches are submitted and callers' futures completed. It
+    *        must not run tasks of {@code executor}, since a batch submitted from within such a task would
+    *        run inline in it.
+    */
+   public StatementBatcher(SqlExecutor executor, int maxBatchSize, long maxDelay, TimeUnit unit, Executor dispatcher)
+   {
+      if (maxBatchSize < 1)
+         throw new IllegalArgumentException("Batch size must be at least 1, but was " + maxBatchSize);
+
+      this.executor = executor;
+      this.dispatcher = dispatcher;
+      this.maxBatchSize = maxBatchSize;
+      this.maxDelayNanos = unit.toNanos(maxDelay);
+   }
+
+   /**
+    * Add a parameter set to the batch for a statement.
+    *
+    * @param sql The statement; parameter sets are only batched with others for identical SQL text.
+    * @param params The values of the statement's parameters, in order, as for
+    *        {@link PreparedStatement#setObject(int, Object)}.
+    * @return A future for the update count of this parameter set.
+    */
+   public CompletableFuture<Integer> submit(String sql, Object... params)
+   {
+      CompletableFuture<Integer> result = new CompletableFuture<>();
+      Batch full = null;
+      synchronized (this)
+      {
+         if (closed)
+         {
+            result.completeExceptionally(new IllegalStateException("Statement batcher is closed"));
+            return result;
+         }
+
+         Batch batch = open.get(sql);
+         if (batch == null)
+         {
+            batch = new Batch(sql);
+            open.put(sql, batch);
+            Batch scheduled = batch;
+            batch.timeout = timer.schedule(() -> dispatch(() -> flushIfOpen(scheduled), scheduled), maxDelayNanos, TimeUnit.NANOSECONDS);
+         }
+
+         batch.params.add(params.clone());
+         batch.results.add(result);
+         if (batch.params.size() >= maxBatchSize)
+         {
+            open.remove(sql);
+            batch.timeout.cancel(false);
+            full = batch;
+         }
+      }
+
+      if (full != null)
+      {
+         Batch ready = full;
+         dispatch(() -> run(ready), ready);
+      }
+      return result;
+   }
+
+   /**
+    * Run all open batches now. The batches are submitted from the dispatch executor, so this may be
+    * called from within a task of the underlying executor.
+    */
+   public void flush()
+   {
+      List<Batch> batches;
+      synchronized (this)
+      {
+         batches = new ArrayList<>(open.values());
+         open.clear();
+      }
+
+      for (Batch batch : batches)
+      {
+         batch.timeout.cancel(false);
+         dispatch(() -> run(batch), batch);
+      }
+   }
+
+   /**
+    * Flush open batches and reject further submissions. Does not close the underlying executor.
+    */
+   @Override
+   public void close()
+   {
+      synchronized (this)
+      {
+         closed = true;
+      }
+      flush();
+   }
+
+   private void flushIfOpen(Batch batch)
+   {
+      synchronized (this)
+      {
+         if (open.get(batch.sql) != batch)
+            return;
+         open.remove(batch.sql);
+      }
+      run(batch);
+   }
+
+   /**
+    * Run an action for a batch on the dispatch executor. Never submit from the caller's thread: if it is
+    * running a task of the executor, the batch would run inline in that task's transaction.
+    */
+   private void dispatch(Runnable action, Batch batch)
+   {
+      try
+      {
+         dispatcher.execute(action);
+      }
+      catch (RejectedExecutionException e)
+      {
+         failAll(batch.results, e);
+      }
+   }
+
+   /**
+    * Run a batch on the executor. Every caller's future is completed, even if the executor rejects the
+    * batch, e.g. because it was closed after the batch was collected.
+    */
+   private void run(Batch batch)
+   {
+      try
+      {
+         executor.submit(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(batch.sql))
+            {
+               for (Object[] values : batch.params)
+               {
+                  bind(ps, values);
+                  ps.addBatch();
+               }
+               return ps.executeBatch();
+            }
+         }).whenComplete((counts, ex) -> {
+            // off the executor thread, so that retries are not run inline in the failed task
+            dispatch(() -> {
+               try
+               {
+                  complete(batch, counts, ex);
+               }
+               catch (Throwable t)
+               {
+                  failAll(batch.results, t);
+               }
+            }, batch);
+         });
+      }
+      catch (Throwable t)
+      {
+         failAll(batch.results, t);
+      }
+   }
+
+   private void complete(Batch batch, int[] counts, Throwable ex)
+   {
+      if (ex == null)
+      {
+         if (counts.length != batch.results.size())
+            throw new IllegalStateException("Batch of " + batch.results.size() + " returned " + counts.length + " update counts");
+         for (int i = 0; i < batch.results.size(); i++)
+            batch.results.get(i).complete(Integer.valueOf(counts[i]));
+      }
+      else if (batch.params.size() == 1)
+         batch.results.get(0).completeExceptionally(ex);
+      else
+      {
+         debug.log(Level.FINE, "Batch of " + batch.params.size() + " failed; retrying individually", ex);
+         for (int i = 0; i < batch.params.size(); i++)
+            runSingle(batch.sql, batch.params.get(i), batch.results.get(i));
+      }
+   }
+
+   private void runSingle(String sql, Object[] values, CompletableFuture<Integer> result)
+   {
+      try
+      {
+         executor.submit(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql))
+            {
+               bind(ps, values);
+               return Integer.valueOf(ps.executeUpdate());
+            }
+         }).whenComplete((count, ex) -> {
+            if (ex == null)
+               result.complete(count);
+            else
+               result.completeExceptionally(ex);
+         });
+      }
+      catch (Throwable t)
+      {
+         result.completeExceptionally(t);
+      }
+   }
+
+   private static void failAll(List<CompletableFuture<Integer>> results, Throwable error)
+   {
+      for (CompletableFuture<Integer> result : results)
+         result.completeExceptionally(error);
+   }
+
+   private static void bind(PreparedStatement ps, Object[] values) throws SQLException
+   {
+      for (int i = 0; i < values.length; i++)
+         ps.setObject(i + 1, values[i]);
+   }
+
+   private static final class Batch
+   {
+      private final String sql;
+      private final List<Object[]> params = new ArrayList<>();
+      private final List<CompletableFuture<Integer>> results = new ArrayList<>();
+      private ScheduledFuture<?> timeout;
+
+      Batch(String sql)
+      {
+         this.sql = sql;
+      }
+   }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2014-2019 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tamu.tcat.db.postgresql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import edu.tamu.tcat.db.core.DataSourceException;
+
+/**
+ * A thread-safe registry of pooled data sources keyed by an immutable, normalized copy of their
+ * configuration {@link Properties}.
+ * <p>
+ * Lookups of an existing data source do not lock. Under contention, each data source is created
+ * exactly once; concurrent callers requesting the same configuration wait for that creation rather
+ * than creating duplicate pools.
+ * <p>
+ * Optionally, data sources that have not been looked up within a time-to-live and that report
+ * themselves idle are closed and removed. This should only be enabled when callers look up the data
+ * source for each use rather than retaining it.
+ *
+ * @param <D> The type of data source managed.
+ * @since 1.6
+ */
+public class DataSourceRegistry<D extends DataSource>
+{
+   private static final Logger debug = Logger.getLogger(DataSourceRegistry.class.getName());
+
+   /**
+    * Creates a data source for a configuration.
+    */
+   @FunctionalInterface
+   public interface Factory<D>
+   {
+      D create(Properties parameters) throws DataSourceException;
+   }
+
+   /**
+    * Releases the resources of a data source that is no longer registered.
+    */
+   @FunctionalInterface
+   public interface Closer<D>
+   {
+      void close(D dataSource) throws Exception;
+   }
+
+   private final ConcurrentMap<Key, Entry> dataSources = new ConcurrentHashMap<>();
+   private final Factory<D> factory;
+   private final Closer<D> closer;
+   private final Predicate<D> idle;
+
+   private ScheduledExecutorService sweeper;
+   private ScheduledFuture<?> sweep;
+   private volatile long ttlNanos = 0;
+
+   /**
+    * @param factory Creates data sources for configurations not yet registered.
+    * @param closer Closes data sources on {@link #closeAll()} or when expired.
+    * @param idle Tests whether a data source has no connections in use, and so may be expired.
+    */
+   public DataSourceRegistry(Factory<D> factory, Closer<D> closer, Predicate<D> idle)
+   {
+      this.factory = factory;
+      this.closer = closer;
+      this.idle = idle;
+   }
+
+   /**
+    * Get the data source for the given configuration, creating it if needed.
+    */
+   public D get(Properties parameters) throws DataSourceException
+   {
+      return get(Key.of(parameters));
+   }
+
+   /**
+    * Get the data source for the given configuration, creating it if needed. Callers that look up the
+    * same configuration repeatedly may retain the {@link Key} to avoid normalizing the configuration
+    * on each call.
+    */
+   public D get(Key key) throws DataSourceException
+   {
+      while (true)
+      {
+         Entry entry = dataSources.get(key);
+         if (entry == null)
+            entry = dataSources.computeIfAbsent(key, Entry::new);
+
+         D dataSource = entry.get();
+         if (dataSource != null)
+            return dataSource;
+
+         // entry was expired concurrently; drop it and retry with a fresh one
+         dataSources.remove(key, entry);
+      }
+   }
+
+   /**
+    * Close and remove data sources that have not been looked up for the given time and are idle.
+    * A non-positive value disables expiry.
+    */
+   public synchronized void setIdleTimeToLive(long ttl, TimeUnit unit)
+   {
+      if (sweep != null)
+         sweep.cancel(false);
+
+      ttlNanos = unit.toNanos(ttl);
+      if (ttlNanos <= 0)
+      {
+         sweep = null;
+         return;
+      }
+
+      if (sweeper == null)
+      {
+         sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DataSourceRegistry expiry");
+            t.setDaemon(true);
+            return t;
+         });
+      }
+
+      long period = Math.max(TimeUnit.SECONDS.toNanos(1), ttlNanos / 2);
+      sweep = sweeper.scheduleWithFixedDelay(this::expireIdle, period, period, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * @return A snapshot of the data sources currently registered.
+    */
+   public List<D> values()
+   {
+      List<D> result = new ArrayList<>();
+      for (Entry entry : dataSources.values())
+      {
+         D ds = entry.value;
+         if (ds != null)
+            result.add(ds);
+      }
+      return result;
+   }
+
+   /**
+    * Close and remove all registered data sources and stop expiry.
+    */
+   public void closeAll() throws DataSourceException
+   {
+      synchronized (this)
+      {
+         if (sweeper != null)
+            sweeper.shutdownNow();
+         sweeper = null;
+         sweep = null;
+      }
+
+      DataSourceException exception = new DataSourceException("Error closing data sources");
+      for (Key key : new ArrayList<>(dataSources.keySet()))
+      {
+         Entry entry = dataSources.remove(key);
+         if (entry == null)
+            continue;
+
+         try
+         {
+            entry.close();
+         }
+         catch (Exception e)
+         {
+            exception.addSuppressed(e);
+         }
+      }
+      if (exception.getSuppressed().length != 0)
+         throw exception;
+   }
+
+   private void expireIdle()
+   {
+      long ttl = ttlNanos;
+      long now = System.nanoTime();
+      for (Map.Entry<Key, Entry> e : dataSources.entrySet())
+      {
+         Entry entry = e.getValue();
+         D ds = entry.value;
+         if (ds == null || now - entry.lastAccess < ttl)
+            continue;
+
+         try
+         {
+            if (!entry.expire(ttl))
+               continue;
+            debug.log(Level.FINE, "Closed idle data source " + ds);
+         }
+         catch (Exception ex)
+         {
+            debug.log(Level.WARNING, "Failed closing idle data source " + ds, ex);
+         }
+         dataSources.remove(e.getKey(), entry);
+      }
+   }
+
+   private class Entry
+   {
+      private final Key key;
+      private volatile D value;
+      private volatile boolean closed;
+      private volatile long lastAccess = System.nanoTime();
+
+      Entry(Key key)
+      {
+         this.key = key;
+      }
+
+      /**
+       * @return The data source, or {@code null} if this entry has been closed.
+       */
+      D get() throws DataSourceException
+      {
+         lastAccess = System.nanoTime();
+         D ds = value;
+         if (ds != null && !closed)
+            return ds;
+
+         synchronized (this)
+         {
+            if (closed)
+               return null;
+            if (value == null)
+               value = factory.create(key.toProperties());
+            return value;
+         }
+      }
+
+      synchronized void close() throws Exception
+      {
+         closed = true;
+         if (value != null)
+            closer.close(value);
+      }
+
+      /**
+       * Close this entry if it has not been looked up within the time-to-live and its data source is
+       * idle.
+       * <p>
+       * Marked closed before the last lookup time is checked, while {@link #get()} records its lookup time
+       * before checking for closure; as both fields are volatile, either the lookup sees the entry closed
+       * and waits here for the outcome, or this sees the lookup and keeps the entry open.
+       *
+       * @return {@code true} if the entry was closed.
+       */
+      synchronized boolean expire(long ttl) throws Exception
+      {
+         if (closed || value == null)
+            return false;
+
+         closed = true;
+         if (System.nanoTime() - lastAccess < ttl || !idle.test(value))
+         {
+            closed = false;
+            return false;
+         }
+
+         closer.close(value);
+         return true;
+      }
+   }
+
+   /**
+    * An immutable, normalized data source configuration. Two keys are equal if they hold the same
+    * property names and values, regardless of how the originating {@link Properties} were built.
+    */
+   public static final class Key
+   {
+      private final SortedMap<String, String> values;
+      private final int hash;
+
+      private Key(SortedMap<String, String> values)
+      {
+         this.values = Collections.unmodifiableSortedMap(values);
+         this.hash = values.hashCode();
+      }
+
+      /**
+       * Create a key from a snapshot of the given properties, including any defaults. Values that are not
+       * strings, e.g. a port number put as an {@link Integer}, are held as their string form.
+       */
+      public static Key of(Properties parameters)
+      {
+         SortedMap<String, String> values = new TreeMap<>();
+         // includes defaults, but only string keys and values
+         for (String name : parameters.stringPropertyNames())
+            values.put(name, parameters.getProperty(name));
+
+         // Properties is a Hashtable, which locks on itself
+         synchronized (parameters)
+         {
+            for (Map.Entry<Object, Object> e : parameters.entrySet())
+            {
+               if (e.getKey() instanceof String && e.getValue() != null)
+                  values.put((String)e.getKey(), String.valueOf(e.getValue()));
+            }
+         }
+         return new Key(values);
+      }
+
+      /**
+       * @return A new, mutable copy of this configuration.
+       */
+      public Properties toProperties()
+      {
+         Properties props = new Properties();
+         props.putAll(values);
+         return props;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (this == obj)
+            return true;
+         if (!(obj instanceof Key))
+            return false;
+         Key other = (Key)obj;
+         return hash == other.hash && values.equals(other.values);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public String toString()
+      {
+         // do not expose credentials
+         return "DataSourceRegistry.Key" + values.keySet();
+      }
+   }
+}
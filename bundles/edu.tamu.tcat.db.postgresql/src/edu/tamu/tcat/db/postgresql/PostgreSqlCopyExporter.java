@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.tamu.tcat.db.postgresql;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyOut;
+
+import edu.tamu.tcat.db.core.DataSourceException;
+
+/**
+ * Exports query results with {@code COPY (query) TO STDOUT}, writing the server's output directly to a
+ * channel or buffer.
+ * <p>
+ * Rows are not materialized as Java objects or re-serialized: each chunk of the COPY stream, as produced
+ * by the server in CSV, text or binary format, is written to the target as-is. The driver hands over the
+ * stream one row per {@code byte[]}, so a small array is still allocated per row, but nothing else is.
+ * <p>
+ * Large exports can be split into ranges of a key column (see {@link #rangeQueries}) and exported to
+ * separate files in parallel with {@link #exportParallel}.
+ *
+ * @since 1.6
+ */
+public class PostgreSqlCopyExporter
+{
+   private static final Logger debug = Logger.getLogger(PostgreSqlCopyExporter.class.getName());
+
+   private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*|\"([^\"]|\"\")+\"");
+
+   /**
+    * The output format of an export.
+    */
+   public enum Format
+   {
+      /** Comma-separated values with a header row. */
+      CSV("FORMAT csv, HEADER true"),
+      /** PostgreSQL's tab-separated text format. */
+      TEXT("FORMAT text"),
+      /** PostgreSQL's binary COPY format, suitable for {@code COPY ... FROM} into a table of the same types. */
+      BINARY("FORMAT binary");
+
+      private final String options;
+
+      Format(String options)
+      {
+         this.options = options;
+      }
+   }
+
+   /**
+    * Export the result of a query to a channel.
+    *
+    * @param conn The connection on which to run the export; must be a PostgreSQL connection or wrap one.
+    * @param query The query to export; it cannot have bind parameters.
+    * @return The number of rows exported.
+    */
+   public static long export(Connection conn, String query, Format format, WritableByteChannel target) throws SQLException, IOException
+   {
+      CopyOut copy = start(conn, query, format);
+      try
+      {
+         byte[] chunk;
+         while ((chunk = copy.readFromCopy()) != null)
+         {
+            ByteBuffer buf = ByteBuffer.wrap(chunk);
+            while (buf.hasRemaining())
+               target.write(buf);
+         }
+         return copy.getHandledRowCount();
+      }
+      catch (SQLException | IOException | RuntimeException e)
+      {
+         cancel(copy, e);
+         throw e;
+      }
+   }
+
+   /**
+    * Export the result of a query into a buffer, e.g. a {@link java.nio.MappedByteBuffer} of a file sized
+    * in advance. Output is written from the buffer's position, which is advanced past it.
+    *
+    * @return The number of rows exported.
+    * @throws IOException If the output does not fit in the buffer's remaining space; the export is
+    *         cancelled, and the buffer holds the output up to the last complete row that fit.
+    */
+   public static long export(Connection conn, String query, Format format, ByteBuffer target) throws SQLException, IOException
+   {
+      CopyOut copy = start(conn, query, format);
+      try
+      {
+         byte[] chunk;
+         while ((chunk = copy.readFromCopy()) != null)
+         {
+            if (chunk.length > target.remaining())
+               throw new BufferOverflowException();
+            target.put(chunk);
+         }
+         return copy.getHandledRowCount();
+      }
+      catch (BufferOverflowException e)
+      {
+         IOException ex = new IOException("Export of [" + query + "] exceeds the " + target.capacity() + " byte target buffer");
+         cancel(copy, ex);
+         throw ex;
+      }
+      catch (SQLException | RuntimeException e)
+      {
+         cancel(copy, e);
+         throw e;
+      }
+   }
+
+   /**
+    * Export the result of a query to a file, replacing any existing content.
+    *
+    * @return The number of rows exported.
+    */
+   public static long export(Connection conn, String query, Format format, Path file) throws SQLException, IOException
+   {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+      {
+         return export(conn, query, format, channel);
+      }
+   }
+
+   /**
+    * Export several queries, typically ranges of one table, to separate files in parallel. Each export
+    * runs on its own connection.
+    *
+    * @param dataSource The source of connections.
+    * @param queries The query to export to each file.
+    * @param parallelism The maximum number of concurrent exports.
+    * @return The number of rows exported to each file.
+    * @throws DataSourceException If any export failed; the others are allowed to complete first.
+    */
+   public static Map<Path, Long> exportParallel(DataSource dataSource, Map<Path, String> queries, Format format, int parallelism) throws DataSourceException
+   {
+      Map<Path, CompletableFuture<Long>> exports = new LinkedHashMap<>();
+      ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, queries.size())));
+      try
+      {
+         queries.forEach((file, query) -> exports.put(file, CompletableFuture.supplyAsync(() -> {
+            try (Connection conn = dataSource.getConnection())
+            {
+               return Long.valueOf(export(conn, query, format, file));
+            }
+            catch (SQLException | IOException e)
+            {
+               throw new CompletionException(e);
+            }
+         }, exec)));
+      }
+      finally
+      {
+         exec.shutdown();
+      }
+
+      Map<Path, Long> rows = new LinkedHashMap<>();
+      DataSourceException failure = null;
+      for (Map.Entry<Path, CompletableFuture<Long>> entry : exports.entrySet())
+      {
+         try
+         {
+            rows.put(entry.getKey(), entry.getValue().join());
+         }
+         catch (CompletionException e)
+         {
+            debug.log(Level.SEVERE, "Failed exporting to [" + entry.getKey() + "]", e.getCause());
+            if (failure == null)
+               failure = new DataSourceException("Failed exporting to [" + entry.getKey() + "]", e.getCause());
+            else
+               failure.addSuppressed(e.getCause());
+         }
+      }
+
+      if (failure != null)
+         throw failure;
+      return rows;
+   }
+
+   /**
+    * Split a query into queries over contiguous ranges of an integer column, for use with
+    * {@link #exportParallel}.
+    *
+    * @param query The query to split.
+    * @param column The name of an integer column in the output of the query.
+    * @param min The smallest value of the column to include.
+    * @param max The largest value of the column to include.
+    * @param partitions The number of ranges.
+    * @return One query per range, in ascending order of the column.
+    */
+   public static List<String> rangeQueries(String query, String column, long min, long max, int partitions)
+   {
+      if (!IDENTIFIER.matcher(column).matches())
+         throw new IllegalArgumentException("Invalid column name [" + column + "]");
+      if (partitions < 1 || max < min)
+         throw new IllegalArgumentException("Invalid range [" + min + ", " + max + "] in " + partitions + " partitions");
+
+      long span = (max - min) / partitions + 1;
+      List<String> ranges = new ArrayList<>(partitions);
+      for (long lo = min; lo <= max && ranges.size() < partitions; lo += span)
+      {
+         long hi = Math.min(max, lo + span - 1);
+         ranges.add("SELECT * FROM (" + query + ") AS export_range WHERE " + column + " BETWEEN " + lo + " AND " + hi + " ORDER BY " + column);
+         if (hi == max)
+            break;
+      }
+      return ranges;
+   }
+
+   private static CopyOut start(Connection conn, String query, Format format) throws SQLException
+   {
+      PGConnection pg = conn.unwrap(PGConnection.class);
+      return pg.getCopyAPI().copyOut("COPY (" + query + ") TO STDOUT (" + format.options + ")");
+   }
+
+   private static void cancel(CopyOut copy, Exception cause)
+   {
+      if (!copy.isActive())
+         return;
+
+      try
+      {
+         copy.cancelCopy();
+      }
+      catch (SQLException e)
+      {
+         cause.addSuppressed(e);
+      }
+   }
+}
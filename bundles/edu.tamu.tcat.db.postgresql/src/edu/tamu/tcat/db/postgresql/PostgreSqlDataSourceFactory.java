@@ -16,11 +16,14 @@
 
 package edu.tamu.tcat.db.postgresql;
 
+import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -29,6 +32,7 @@ import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverConnectionFactory;
 
 import edu.tamu.tcat.db.core.DataSourceException;
+import edu.tamu.tcat.db.provider.LeakDetector;
 
 /**
  *
@@ -45,23 +49,82 @@ public class PostgreSqlDataSourceFactory
    public final static String MAX_ACTIVE_CONNECTIONS = "Max Active Connections";
    /** @since 1.5 */
    public final static String MAX_IDLE_CONNECTIONS   = "Max Idle Connections";
+   /**
+    * Time (ms) a borrowed connection may be held before it is reported as a possible leak.
+    * @since 1.6
+    */
+   public final static String LEAK_DETECTION_THRESHOLD_MILLIS = "Leak Detection Threshold Millis";
+   /**
+    * Fraction (0 to 1) of borrows for which the borrowing stack is captured, to be included when the
+    * connection is reported as a possible leak.
+    * @since 1.6
+    */
+   public final static String LEAK_DETECTION_SAMPLE_RATE = "Leak Detection Sample Rate";
+
+   /**
+    * The data sources currently registered, by a copy of their configuration. Maintained for subclasses
+    * only; lookups go through {@link #registry}.
+    * @deprecated Use {@link #registry}, which is keyed by an immutable configuration.
+    */
+   @Deprecated
+   protected Map<Properties, BasicDataSource> dataSources = Collections.synchronizedMap(new HashMap<>());
+
+   /**
+    * Data sources by immutable copy of their configuration.
+    * @since 1.6
+    */
+   protected final DataSourceRegistry<BasicDataSource> registry =
+         new DataSourceRegistry<>(this::register, this::unregister, ds -> ds.getNumActive() == 0);
+
+   private BasicDataSource register(Properties parameters) throws DataSourceException
+   {
+      BasicDataSource dataSource = createDataSource(parameters);
+      dataSources.put(parameters, dataSource);
+      return dataSource;
+   }
 
-   //FIXME: a Properties is an unsafe map key because it is mutable.
-   protected Map<Properties, BasicDataSource> dataSources = new HashMap<>();
+   private void unregister(BasicDataSource dataSource) throws SQLException
+   {
+      dataSources.values().remove(dataSource);
+      dataSource.close();
+   }
 
    /**
     * Create a new {@link BasicDataSource} from the specified {@link Properties}
+    * <p>
+    * As of 1.6, abandoned connections are no longer logged with the stack of every borrow
+    * ({@code logAbandoned} is off). Instead a {@link LeakDetector} reports connections held longer than
+    * {@link #LEAK_DETECTION_THRESHOLD_MILLIS} (default 60s), with the borrow site for a sample of
+    * {@link #LEAK_DETECTION_SAMPLE_RATE} (default 1%) of borrows. Set the rate to 1 to capture every
+    * borrow site, as before. Abandoned connections are still reclaimed after 60s.
     * @since 1.5
     */
-   protected synchronized BasicDataSource createDataSource(final Properties parameters) throws DataSourceException
+   protected BasicDataSource createDataSource(final Properties parameters) throws DataSourceException
    {
       BasicDataSource dataSource;
       final Driver driver = getDriver();
       final String connectionUrl = getConnectionUrl(parameters);
       final Properties connectionProps = getConnectionProperties(parameters);
+      final LeakDetector leakDetector = new LeakDetector(
+            getDoubleParameter(parameters, LEAK_DETECTION_SAMPLE_RATE, 0.01),
+            getLongParameter(parameters, LEAK_DETECTION_THRESHOLD_MILLIS, 60000),
+            TimeUnit.MILLISECONDS);
 
       dataSource = new BasicDataSource()
       {
+         @Override
+         public Connection getConnection() throws SQLException
+         {
+            return leakDetector.track(super.getConnection());
+         }
+
+         @Override
+         public synchronized void close() throws SQLException
+         {
+            leakDetector.close();
+            super.close();
+         }
+
          @Override
          protected ConnectionFactory createConnectionFactory() throws SQLException
          {
@@ -99,7 +162,9 @@ public class PostgreSqlDataSourceFactory
       dataSource.setMinIdle(0);
       dataSource.setMinEvictableIdleTimeMillis(10000);
       dataSource.setTimeBetweenEvictionRunsMillis(1000);
-      dataSource.setLogAbandoned(true);
+      // borrow sites of long-held connections are sampled by the leak detector; capturing them on every
+      // borrow is costly
+      dataSource.setLogAbandoned(false);
       dataSource.setRemoveAbandoned(true);//seconds
       dataSource.setRemoveAbandonedTimeout(60);
       return dataSource;
@@ -110,15 +175,18 @@ public class PostgreSqlDataSourceFactory
    /** @since 1.5 */
    public DataSource getDataSource(Properties parameters) throws DataSourceException
    {
-      BasicDataSource dataSource = dataSources.get(parameters);
-      if (dataSource == null)
-      {
-         Properties nonMutating = new Properties();
-         nonMutating.putAll(parameters);
-         dataSource = createDataSource(nonMutating);
-         dataSources.put(nonMutating, dataSource);
-      }
-      return dataSource;
+      return registry.get(parameters);
+   }
+
+   /**
+    * Close data sources that have not been requested through {@link #getDataSource(Properties)} for the
+    * given time and have no active connections. Only enable this if clients request the data source for
+    * each use rather than retaining it. A non-positive value disables expiry (the default).
+    * @since 1.6
+    */
+   public void setIdleTimeToLive(long ttl, TimeUnit unit)
+   {
+      registry.setIdleTimeToLive(ttl, unit);
    }
 
    /**
@@ -128,20 +196,7 @@ public class PostgreSqlDataSourceFactory
     */
    public void shutdown() throws DataSourceException
    {
-      DataSourceException exception = new DataSourceException("Error closing " + getClass().getName() + "datasources");
-      for (BasicDataSource ds : dataSources.values())
-      {
-         try
-         {
-            ds.close();
-         }
-         catch (Exception e)
-         {
-            exception.addSuppressed(exception);
-         }
-      }
-      if (exception.getSuppressed().length != 0)
-         throw exception;
+      registry.closeAll();
    }
 
    /** @since 1.5 */
@@ -160,6 +215,20 @@ public class PostgreSqlDataSourceFactory
       return 5;
    }
 
+   private static long getLongParameter(Properties parameters, String key, long defaultValue)
+   {
+      if (parameters.containsKey(key))
+         return Long.parseLong(parameters.getProperty(key));
+      return defaultValue;
+   }
+
+   private static double getDoubleParameter(Properties parameters, String key, double defaultValue)
+   {
+      if (parameters.containsKey(key))
+         return Double.parseDouble(parameters.getProperty(key));
+      return defaultValue;
+   }
+
    /** @since 1.5 */
    public int getNumActive(DataSource ds) throws DataSourceException
    {
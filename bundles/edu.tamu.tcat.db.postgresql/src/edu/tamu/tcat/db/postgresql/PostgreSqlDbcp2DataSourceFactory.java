@@ -16,11 +16,11 @@
 
 package edu.tamu.tcat.db.postgresql;
 
+import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -29,6 +29,8 @@ import org.apache.commons.dbcp2.ConnectionFactory;
 import org.apache.commons.dbcp2.DriverConnectionFactory;
 
 import edu.tamu.tcat.db.core.DataSourceException;
+import edu.tamu.tcat.db.provider.ConnectionValidator;
+import edu.tamu.tcat.db.provider.LeakDetector;
 
 /**
  * @deprecated A simpler and more custom per-application solution should be used. This class
@@ -41,9 +43,36 @@ public class PostgreSqlDbcp2DataSourceFactory
    public final static String MAX_ACTIVE_CONNECTIONS = "Max Active Connections";
    /** @since 1.5 */
    public final static String MAX_IDLE_CONNECTIONS   = "Max Idle Connections";
+   /**
+    * Time (ms) after a successful validation during which a pooled connection is borrowed without another
+    * check. Only used when no validation query is configured.
+    * @since 1.6
+    */
+   public final static String VALIDATION_WINDOW_MILLIS = "Validation Window Millis";
+   /**
+    * Smoothed validation latency (ms) above which a pooled connection is discarded; 0 to disable.
+    * @since 1.6
+    */
+   public final static String SLOW_CONNECTION_MILLIS = "Slow Connection Millis";
+   /**
+    * Interval (ms) between runs of the idle connection evictor, which also validates idle connections.
+    * @since 1.6
+    */
+   public final static String EVICTION_INTERVAL_MILLIS = "Eviction Interval Millis";
+   /**
+    * Time (ms) a borrowed connection may be held before it is reported as a possible leak.
+    * @since 1.6
+    */
+   public final static String LEAK_DETECTION_THRESHOLD_MILLIS = "Leak Detection Threshold Millis";
+   /**
+    * Fraction (0 to 1) of borrows for which the borrowing stack is captured, to be included when the
+    * connection is reported as a possible leak.
+    * @since 1.6
+    */
+   public final static String LEAK_DETECTION_SAMPLE_RATE = "Leak Detection Sample Rate";
 
-   // The Properties key is ensured immutable to make it a safe key
-   private Map<Properties, BasicDataSource> dataSources = new HashMap<>();
+   private final DataSourceRegistry<BasicDataSource> dataSources =
+         new DataSourceRegistry<>(this::createDataSource, BasicDataSource::close, ds -> ds.getNumActive() == 0);
    private Driver cachedDriver = null;
 
    public PostgreSqlPropertiesBuilder getPropertiesBuilder()
@@ -114,16 +143,41 @@ public class PostgreSqlDbcp2DataSourceFactory
 
    /**
     * Create a new {@link BasicDataSource} from the specified {@link DSProperties}
+    * <p>
+    * Since 1.6 the data source does not log abandoned connections ({@code logAbandoned} is off), as that
+    * captures a stack trace on every borrow. Borrows are tracked by a {@link LeakDetector} instead, which
+    * by default warns of connections held over 60s ({@link #LEAK_DETECTION_THRESHOLD_MILLIS}) and records
+    * where 1% of connections were borrowed ({@link #LEAK_DETECTION_SAMPLE_RATE}); a rate of 1 restores a
+    * borrow site for every report. Abandoned connections are still removed after 60s.
     */
-   protected synchronized BasicDataSource createDataSource(final Properties parameters) throws DataSourceException
+   protected BasicDataSource createDataSource(final Properties parameters) throws DataSourceException
    {
       BasicDataSource dataSource;
       final Driver driver = getDriver();
       final String connectionUrl = getConnectionUrl(parameters);
       final Properties connectionProps = getConnectionProperties(parameters);
+      final ConnectionValidator validator = new ConnectionValidator(getLongParameter(parameters, VALIDATION_WINDOW_MILLIS, 5000),
+                                                                    getLongParameter(parameters, SLOW_CONNECTION_MILLIS, 1000),
+                                                                    TimeUnit.MILLISECONDS);
+      final LeakDetector leakDetector = new LeakDetector(getDoubleParameter(parameters, LEAK_DETECTION_SAMPLE_RATE, 0.01),
+                                                         getLongParameter(parameters, LEAK_DETECTION_THRESHOLD_MILLIS, 60000),
+                                                         TimeUnit.MILLISECONDS);
 
       dataSource = new BasicDataSource()
       {
+         @Override
+         public Connection getConnection() throws SQLException
+         {
+            return leakDetector.track(super.getConnection());
+         }
+
+         @Override
+         public synchronized void close() throws SQLException
+         {
+            leakDetector.close();
+            super.close();
+         }
+
          @Override
          protected ConnectionFactory createConnectionFactory() throws SQLException
          {
@@ -133,15 +187,18 @@ public class PostgreSqlDbcp2DataSourceFactory
             if (!driver.acceptsURL(dataSourceUrl))
                throw new IllegalStateException("Invalid database URL provided to driver: " + dataSourceUrl);
 
-            if (getValidationQuery() == null)
-            {
-               setTestOnBorrow(false);
-               setTestOnReturn(false);
-               setTestWhileIdle(false);
-            }
-
             ConnectionFactory driverConnectionFactory = new DriverConnectionFactory(driver, connectionUrl, connectionProps);
-            return driverConnectionFactory;
+            if (getValidationQuery() != null)
+               return driverConnectionFactory;
+
+            // Without a validation query, the pool validates with Connection.isValid, which the validator
+            // answers without a round-trip for recently validated connections. Idle connections are checked
+            // (and slow ones scored out) by the evictor.
+            setTestOnBorrow(true);
+            setTestOnReturn(false);
+            setTestWhileIdle(true);
+            setNumTestsPerEvictionRun(-1);
+            return () -> new ValidatedConnection(driverConnectionFactory.createConnection(), validator);
          }
 
          @Override
@@ -160,8 +217,10 @@ public class PostgreSqlDbcp2DataSourceFactory
       dataSource.setMaxIdle(getMaxIdleConnections(parameters));
       dataSource.setMinIdle(0);
       dataSource.setMinEvictableIdleTimeMillis(10000);
-      dataSource.setTimeBetweenEvictionRunsMillis(1000);
-      dataSource.setLogAbandoned(true);
+      dataSource.setTimeBetweenEvictionRunsMillis(getLongParameter(parameters, EVICTION_INTERVAL_MILLIS, 30000));
+      // borrow sites of long-held connections are sampled by the leak detector; capturing them on every
+      // borrow is costly
+      dataSource.setLogAbandoned(false);
       dataSource.setRemoveAbandonedOnBorrow(true);
       dataSource.setRemoveAbandonedOnMaintenance(true);
       dataSource.setRemoveAbandonedTimeout(60); // seconds
@@ -172,15 +231,18 @@ public class PostgreSqlDbcp2DataSourceFactory
    // of this class must import that package to link to any factory subclass
    public DataSource getDataSource(Properties parameters) throws DataSourceException
    {
-      BasicDataSource dataSource = dataSources.get(parameters);
-      if (dataSource == null)
-      {
-         Properties nonMutating = new Properties();
-         nonMutating.putAll(parameters);
-         dataSource = createDataSource(nonMutating);
-         dataSources.put(nonMutating, dataSource);
-      }
-      return dataSource;
+      return dataSources.get(parameters);
+   }
+
+   /**
+    * Close data sources that have not been requested through {@link #getDataSource(Properties)} for the
+    * given time and have no active connections. Only enable this if clients request the data source for
+    * each use rather than retaining it. A non-positive value disables expiry (the default).
+    * @since 1.6
+    */
+   public void setIdleTimeToLive(long ttl, TimeUnit unit)
+   {
+      dataSources.setIdleTimeToLive(ttl, unit);
    }
 
    /**
@@ -189,20 +251,7 @@ public class PostgreSqlDbcp2DataSourceFactory
     * */
    public void shutdown() throws DataSourceException
    {
-      DataSourceException exception = new DataSourceException("Error closing " + getClass().getName() + "datasources");
-      for (BasicDataSource ds : dataSources.values())
-      {
-         try
-         {
-            ds.close();
-         }
-         catch (Exception e)
-         {
-            exception.addSuppressed(exception);
-         }
-      }
-      if (exception.getSuppressed().length != 0)
-         throw exception;
+      dataSources.closeAll();
    }
 
    protected int getMaxActiveConnections(Properties parameters)
@@ -212,6 +261,20 @@ public class PostgreSqlDbcp2DataSourceFactory
       return 5;
    }
 
+   private static long getLongParameter(Properties parameters, String key, long defaultValue)
+   {
+      if (parameters.containsKey(key))
+         return Long.parseLong(parameters.getProperty(key));
+      return defaultValue;
+   }
+
+   private static double getDoubleParameter(Properties parameters, String key, double defaultValue)
+   {
+      if (parameters.containsKey(key))
+         return Double.parseDouble(parameters.getProperty(key));
+      return defaultValue;
+   }
+
    protected int getMaxIdleConnections(Properties parameters)
    {
       if(parameters.containsKey(MAX_IDLE_CONNECTIONS))
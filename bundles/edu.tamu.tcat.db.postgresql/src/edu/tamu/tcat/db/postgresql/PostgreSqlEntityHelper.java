@@ -15,12 +15,27 @@
  */
 package edu.tamu.tcat.db.postgresql;
 
+import java.sql.Array;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.sql.DataSource;
+
+import edu.tamu.tcat.db.core.ParallelCreation;
+
 /**
  * A set of utilities to help build database entities in PostgreSQL, such as databases and schemas.
  * @since 1.4
@@ -60,7 +75,7 @@ public class PostgreSqlEntityHelper
       }
 
       debug.log(Level.INFO, "Database [" + targetDatabase + "] not found, creating it now");
-      String sqlCreate = "CREATE DATABASE \"" + targetDatabase + "\"";
+      String sqlCreate = "CREATE DATABASE " + quoteIdentifier(targetDatabase);
       try (PreparedStatement create = connDefaultDb.prepareStatement(sqlCreate))
       {
          create.executeUpdate();
@@ -146,7 +161,7 @@ public class PostgreSqlEntityHelper
       }
 
       debug.log(Level.INFO, "Schema [" + targetSchemaName + "] not found, creating it now");
-      String sqlCreate = "CREATE SCHEMA \"" + targetSchemaName + "\"";
+      String sqlCreate = "CREATE SCHEMA " + quoteIdentifier(targetSchemaName);
       try (PreparedStatement create = conn.prepareStatement(sqlCreate))
       {
          debug.log(Level.INFO, "Schema [" + targetSchemaName + "] not found, creating it now");
@@ -159,4 +174,182 @@ public class PostgreSqlEntityHelper
          return false;
       }
    }
+
+   /**
+    * Create each of the given schemas that does not already exist. Existing schemas are found with a
+    * single catalog query and the missing ones are created in a single statement batch, which is
+    * considerably faster than {@link #createSchema(Connection, String)} per name when provisioning many
+    * schemas. If the batch fails, none of it takes effect, and each schema is then created by a
+    * statement of its own (under a savepoint if auto-commit is off).
+    *
+    * @param conn A connection to the database in which to create the schemas.
+    * @param targetSchemaNames The names of the schemas to create.
+    * @return The names of the schemas created; empty if the existence check failed.
+    * @since 1.6
+    */
+   public static Set<String> createSchemas(Connection conn, Collection<String> targetSchemaNames)
+   {
+      String sqlCheck = "SELECT nspname FROM pg_catalog.pg_namespace WHERE nspname = ANY(?)";
+      Set<String> missing;
+      try
+      {
+         missing = findMissing(conn, sqlCheck, targetSchemaNames);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.SEVERE, "Failed checking for existence of schemas with sql ["+sqlCheck+"]", e);
+         // don't try to create if exist check failed
+         return Collections.emptySet();
+      }
+
+      if (missing.isEmpty())
+         return missing;
+
+      debug.log(Level.INFO, "Schemas " + missing + " not found, creating them now");
+      List<String> names = new ArrayList<>(missing);
+      boolean autoCommit;
+      Savepoint savepoint = null;
+      try
+      {
+         autoCommit = conn.getAutoCommit();
+         if (!autoCommit)
+            savepoint = conn.setSavepoint();
+
+         try (Statement create = conn.createStatement())
+         {
+            for (String name : names)
+               create.addBatch("CREATE SCHEMA IF NOT EXISTS " + quoteIdentifier(name));
+            create.executeBatch();
+         }
+
+         if (savepoint != null)
+            conn.releaseSavepoint(savepoint);
+         return missing;
+      }
+      catch (BatchUpdateException e)
+      {
+         // the batch runs in one transaction, so its failure undoes statements reported as succeeded
+         debug.log(Level.WARNING, "Failed creating schemas " + missing + " in a batch; creating each separately", e);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.SEVERE, "Failed creating schemas " + missing, e);
+         return Collections.emptySet();
+      }
+
+      try
+      {
+         if (savepoint != null)
+            conn.rollback(savepoint);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.SEVERE, "Failed rolling back batch creating schemas " + missing, e);
+         return Collections.emptySet();
+      }
+      return createEachSchema(conn, names, savepoint != null);
+   }
+
+   /**
+    * Create each schema with a statement of its own, skipping those that fail.
+    *
+    * @param useSavepoints Whether to isolate each statement under a savepoint, as is needed so that one
+    *        failure does not abort the connection's transaction.
+    */
+   private static Set<String> createEachSchema(Connection conn, List<String> names, boolean useSavepoints)
+   {
+      Set<String> created = new LinkedHashSet<>();
+      for (String name : names)
+      {
+         String sqlCreate = "CREATE SCHEMA IF NOT EXISTS " + quoteIdentifier(name);
+         Savepoint savepoint = null;
+         try (Statement create = conn.createStatement())
+         {
+            if (useSavepoints)
+               savepoint = conn.setSavepoint();
+            create.executeUpdate(sqlCreate);
+            if (savepoint != null)
+               conn.releaseSavepoint(savepoint);
+            created.add(name);
+         }
+         catch (Exception e)
+         {
+            debug.log(Level.SEVERE, "Failed creating schema ["+name+"] with sql ["+sqlCreate+"]", e);
+            if (savepoint == null)
+               continue;
+
+            try
+            {
+               conn.rollback(savepoint);
+            }
+            catch (Exception ex)
+            {
+               debug.log(Level.SEVERE, "Failed rolling back creation of schema [" + name + "]", ex);
+               return created;
+            }
+         }
+      }
+      return created;
+   }
+
+   /**
+    * Create each of the given databases that does not already exist. Existing databases are found with
+    * a single catalog query; since {@code CREATE DATABASE} cannot run in a transaction block or batch, the
+    * missing databases are created in parallel, each on its own connection.
+    *
+    * @param dsDefaultDb A data source for connections to the db server on the database "postgres"
+    * @param targetDatabases The names of the databases to create
+    * @param parallelism The maximum number of databases to create concurrently.
+    * @return The names of the databases created; empty if the existence check failed.
+    * @since 1.6
+    */
+   public static Set<String> createDatabases(DataSource dsDefaultDb, Collection<String> targetDatabases, int parallelism)
+   {
+      String sqlCheck = "SELECT datname FROM pg_catalog.pg_database WHERE datname = ANY(?)";
+      Set<String> missing;
+      try (Connection conn = dsDefaultDb.getConnection())
+      {
+         missing = findMissing(conn, sqlCheck, targetDatabases);
+      }
+      catch (Exception e)
+      {
+         debug.log(Level.SEVERE, "Failed checking for existence of databases with sql ["+sqlCheck+"]", e);
+         // don't try to create if exist check failed
+         return Collections.emptySet();
+      }
+
+      if (missing.isEmpty())
+         return missing;
+
+      debug.log(Level.INFO, "Databases " + missing + " not found, creating them now");
+      return ParallelCreation.create(dsDefaultDb, missing, name -> "CREATE DATABASE " + quoteIdentifier(name), parallelism);
+   }
+
+   private static Set<String> findMissing(Connection conn, String sqlCheck, Collection<String> names) throws SQLException
+   {
+      Set<String> missing = new LinkedHashSet<>(names);
+      Array array = conn.createArrayOf("text", missing.toArray());
+      try (PreparedStatement existsCheck = conn.prepareStatement(sqlCheck))
+      {
+         existsCheck.setArray(1, array);
+         try (ResultSet results = existsCheck.executeQuery())
+         {
+            while (results.next())
+               missing.remove(results.getString(1));
+         }
+      }
+      finally
+      {
+         array.free();
+      }
+      return missing;
+   }
+
+   /**
+    * @return The given name as a quoted identifier, with any embedded double quotes doubled.
+    */
+   private static String quoteIdentifier(String name)
+   {
+      return "\"" + name.replace("\"", "\"\"") + "\"";
+   }
 }
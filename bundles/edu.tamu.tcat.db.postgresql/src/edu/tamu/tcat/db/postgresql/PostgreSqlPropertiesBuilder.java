@@ -30,6 +30,10 @@ public class PostgreSqlPropertiesBuilder
     * @since 1.1
     */
    public static final String SSL = "ssl";
+   /**
+    * @since 1.6
+    */
+   public static final String REWRITE_BATCHED_INSERTS = "reWriteBatchedInserts";
 
    // do these need to be removed from create in ds
    public static final String HOST = "Database Server";
@@ -149,6 +153,19 @@ public class PostgreSqlPropertiesBuilder
       return this;
    }
 
+   /**
+    * Have the driver send a batch of {@code INSERT}s as multi-row statements.
+    * @since 1.6
+    */
+   public PostgreSqlPropertiesBuilder setReWriteBatchedInserts(boolean rewrite)
+   {
+      if (!rewrite)
+         properties.remove(REWRITE_BATCHED_INSERTS);
+      else
+         properties.setProperty(REWRITE_BATCHED_INSERTS, String.valueOf(rewrite));
+      return this;
+   }
+
    public PostgreSqlPropertiesBuilder create(String url, String username, String password) throws URISyntaxException
    {
       PostgreSqlPropertiesBuilder builder = new PostgreSqlPropertiesBuilder();
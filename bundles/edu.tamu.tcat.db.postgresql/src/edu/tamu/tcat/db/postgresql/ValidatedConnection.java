@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014-2019 Texas A&M Engineering Experiment Station
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.tamu.tcat.db.postgresql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.commons.dbcp2.DelegatingConnection;
+
+import edu.tamu.tcat.db.provider.ConnectionValidator;
+
+/**
+ * A physical connection whose {@link #isValid(int)}, as called by the DBCP2 pool on borrow and by its
+ * evictor, is answered by a {@link ConnectionValidator}. A successful commit also counts as a
+ * validation.
+ */
+class ValidatedConnection extends DelegatingConnection<Connection>
+{
+   private final ConnectionValidator.Health health;
+
+   ValidatedConnection(Connection physical, ConnectionValidator validator)
+   {
+      super(physical);
+      this.health = validator.track();
+   }
+
+   @Override
+   public boolean isValid(int timeoutSeconds) throws SQLException
+   {
+      return health.isValid(getDelegate(), timeoutSeconds);
+   }
+
+   @Override
+   public void commit() throws SQLException
+   {
+      super.commit();
+      health.markValid();
+   }
+}